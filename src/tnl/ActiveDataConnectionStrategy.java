@@ -0,0 +1,91 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.net.Socket;
+
+
+// PORT: the server connects back to a port leased from the shared DataListener
+class ActiveDataConnectionStrategy implements DataConnectionStrategy {
+    // Wait long enough to prevent immature timeout
+    private static final int ACCEPT_TIMEOUT = 20000;
+
+
+    private DataListener dataListener;
+
+
+    public ActiveDataConnectionStrategy(DataListener dataListener) {
+        this.dataListener = dataListener;
+    }
+
+
+    @Override
+    public DataConnection open(final FTPClient client) throws AutoTerminatedException {
+        final DataListener.PortLease lease;
+
+        try {
+            lease = dataListener.lease(ACCEPT_TIMEOUT);
+        } catch (Exception e) {
+            return null;
+        }
+
+        // Ask Server to open port
+        try {
+            client.sendRequest(
+                    FTPRequestCode.OPEN_DATA_CONNECTION,
+                    client.getServerAddress().getHostAddress(),
+                    String.valueOf(lease.getPort())
+            );
+        } catch (AutoTerminatedException e) {
+            lease.release();
+            throw e;
+        }
+
+        FTPResponse ftpResponse;
+        try {
+            ftpResponse = client.getResponse();
+        } catch (AutoTerminatedException e) {
+            lease.release();
+            throw e;
+        }
+
+        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
+            lease.release();
+        }
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            client.terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        if (ftpResponse.code == FTPResponseCode.SYNTAX_ERROR) {
+            return null;
+        }
+
+        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
+            client.terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        return new DataConnection() {
+            @Override
+            public Socket accept() throws Exception {
+                try {
+                    return lease.accept(client.getServerAddress(), ACCEPT_TIMEOUT);
+                } finally {
+                    lease.release();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                lease.release();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+// Asynchronous facade over one logged-in session.
+// Operations are queued on the session and run one after another, since they share its control connection;
+// the caller gets a CompletableFuture right away instead of holding its own thread for the whole transfer.
+// A queue only occupies a thread of the executor while one of its operations is running, so many
+// sessions can be driven concurrently from a handful of caller threads.
+public class AsyncFTPClient {
+    // Body of a queued operation
+    private interface Operation<T> {
+        T run(FTPClient session) throws Exception;
+    }
+
+
+    // Threads are only created for operations actually running, and die off when idle
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ftp-async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    private FTPClient session;
+    private Executor executor;
+
+    // Completes once the last queued operation is done
+    private CompletableFuture<Void> queueTail;
+
+
+    public AsyncFTPClient(FTPClient session) {
+        this(session, SHARED_EXECUTOR);
+    }
+
+
+    // Any executor may run the operations, e.g. a virtual-thread-per-task executor where the JDK has one
+    public AsyncFTPClient(FTPClient session, Executor executor) {
+        this.session = session;
+        this.executor = executor;
+        this.queueTail = CompletableFuture.completedFuture(null);
+    }
+
+
+    public CompletableFuture<TransferResult> retrieve(String fileNameOnServer, String fileNameOnLocal,
+                                                      OverwritePolicy overwritePolicy) {
+        return enqueue(session -> session.retrieve(fileNameOnServer, fileNameOnLocal, overwritePolicy));
+    }
+
+    public CompletableFuture<TransferResult> store(String fileNameOnLocal, String fileNameOnServer,
+                                                   OverwritePolicy overwritePolicy) {
+        return enqueue(session -> session.store(fileNameOnLocal, fileNameOnServer, overwritePolicy));
+    }
+
+    public CompletableFuture<ListResult> list() {
+        return enqueue(FTPClient::list);
+    }
+
+    public CompletableFuture<CommandResult> delete(String path) {
+        return enqueue(session -> session.delete(path));
+    }
+
+    public CompletableFuture<CommandResult> mkdir(String path) {
+        return enqueue(session -> session.mkdir(path));
+    }
+
+    public CompletableFuture<CommandResult> cwd(String path) {
+        return enqueue(session -> session.cwd(path));
+    }
+
+
+    // Log out once every operation queued so far is done
+    public CompletableFuture<Void> close() {
+        return enqueue(session -> {
+            session.close();
+            return null;
+        });
+    }
+
+
+    // A failed operation (e.g. AutoTerminatedException) completes its future exceptionally,
+    // but does not stop the operations queued after it
+    private synchronized <T> CompletableFuture<T> enqueue(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+
+        CompletableFuture<Void> step = queueTail.thenRunAsync(() -> {
+            try {
+                result.complete(operation.run(session));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }, executor);
+
+        // The executor may refuse the operation, e.g. after being shut down
+        step.whenComplete((ignored, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            }
+        });
+
+        queueTail = step.exceptionally(e -> null);
+
+        return result;
+    }
+
+}
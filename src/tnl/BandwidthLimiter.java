@@ -0,0 +1,107 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Token bucket limiting the bytes per second of every transfer that draws from it.
+// The bucket is kept as the time at which it will be full again: a transfer reserves the time its
+// chunk costs with a single compare-and-set, then sleeps until the reservation is due.
+// Concurrent transfers therefore queue up chunk by chunk and share the rate fairly, without a lock.
+// A process-wide limiter is shared by every session; sessions and transfers may add their own.
+public class BandwidthLimiter {
+    public static final long UNLIMITED = 0;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final BandwidthLimiter GLOBAL = new BandwidthLimiter(UNLIMITED, 0);
+
+
+    private volatile long bytesPerSecond;
+    private volatile long burstBytes;
+
+    // Time at which the bucket holds no more than burstBytes again
+    private AtomicLong fullAt;
+
+
+    public BandwidthLimiter(long bytesPerSecond, long burstBytes) {
+        this.fullAt = new AtomicLong(System.nanoTime());
+
+        setRate(bytesPerSecond, burstBytes);
+    }
+
+
+    public static BandwidthLimiter global() {
+        return GLOBAL;
+    }
+
+
+    // Takes effect on the next chunk of running transfers. UNLIMITED removes the limit.
+    // burstBytes may go at full speed after the transfers have been idle for a while.
+    public void setRate(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond < 0 || burstBytes < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth limit or burst size");
+        }
+
+        this.burstBytes = burstBytes;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getBurstBytes() {
+        return burstBytes;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond != UNLIMITED;
+    }
+
+
+    // Take bytes out of the bucket, even if it has to go into debt.
+    // Nanoseconds the caller has to wait before the bytes are due
+    long reserve(long bytes) {
+        long rate = bytesPerSecond;
+
+        if (rate == UNLIMITED) {
+            return 0;
+        }
+
+        long burstNanos = nanosFor(burstBytes, rate);
+        long costNanos = nanosFor(bytes, rate);
+
+        while (true) {
+            long now = System.nanoTime();
+            long current = fullAt.get();
+
+            // An idle bucket only saves up to burstBytes
+            long start = (current - (now - burstNanos) < 0) ? now - burstNanos : current;
+            long next = start + costNanos;
+
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now);
+            }
+
+        }
+
+    }
+
+
+    private static long nanosFor(long bytes, long bytesPerSecond) {
+        // bytes * NANOS_PER_SECOND could overflow for very large chunks
+        if (bytes > Long.MAX_VALUE / NANOS_PER_SECOND) {
+            return (bytes / bytesPerSecond) * NANOS_PER_SECOND;
+        }
+
+        return bytes * NANOS_PER_SECOND / bytesPerSecond;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Bounded pool of direct buffers shared by every transfer of every session.
+// Buffers are grouped by capacity; a released buffer is only kept while the pool stays under its byte limit.
+public class BufferPool {
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = MIN_CHUNK_SIZE;
+
+    private static final long DEFAULT_MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_MAX_RETAINED_BYTES);
+
+
+    private ConcurrentHashMap<Integer, Queue<ByteBuffer>> freeBuffers;
+    private long maxRetainedBytes;
+
+    private AtomicLong retainedBytes;
+    private AtomicLong hitCount;
+    private AtomicLong missCount;
+
+
+    public BufferPool(long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+
+        freeBuffers = new ConcurrentHashMap<Integer, Queue<ByteBuffer>>();
+
+        retainedBytes = new AtomicLong(0);
+        hitCount = new AtomicLong(0);
+        missCount = new AtomicLong(0);
+    }
+
+
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+
+    public static void checkChunkSize(int chunkSize) {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException(String.format(
+                    "Chunk size must be between %d and %d bytes",
+                    MIN_CHUNK_SIZE, MAX_CHUNK_SIZE
+            ));
+        }
+    }
+
+
+    public ByteBuffer lease(int capacity) {
+        Queue<ByteBuffer> queue = freeBuffers.get(capacity);
+        ByteBuffer buffer = (queue == null) ? null : queue.poll();
+
+        if (buffer == null) {
+            missCount.incrementAndGet();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        hitCount.incrementAndGet();
+        retainedBytes.addAndGet(-capacity);
+
+        buffer.clear();
+        return buffer;
+    }
+
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+
+        // Over the limit: drop the buffer and let the GC reclaim it
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+
+        Queue<ByteBuffer> queue = freeBuffers.get(capacity);
+        if (queue == null) {
+            freeBuffers.putIfAbsent(capacity, new ConcurrentLinkedQueue<ByteBuffer>());
+            queue = freeBuffers.get(capacity);
+        }
+
+        queue.offer(buffer);
+    }
+
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+
+// Bounded ring of buffers leased from a BufferPool, passed from a producer thread to a consumer thread.
+// The producer takes an empty buffer with acquire(), fills it and hands it over with submit(); the consumer
+// gets it from next(), drains it and gives it back with recycle(). Once every buffer is in flight acquire()
+// blocks, so that a slow consumer holds the producer back instead of letting memory grow.
+// Buffers are only leased when needed: a small transfer never uses more than one.
+class BufferRing {
+    // Marks the end of the data in the full buffers, and the consumer giving up in the empty ones
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private static final ByteBuffer ABORTED = ByteBuffer.allocate(0);
+
+
+    private BufferPool bufferPool;
+    private int bufferSize;
+    private int capacity;
+
+    // One more slot than there are buffers, for the marker
+    private ArrayBlockingQueue<ByteBuffer> emptyBuffers;
+    private ArrayBlockingQueue<ByteBuffer> fullBuffers;
+
+    // Producer's thread only, until close()
+    private List<ByteBuffer> leasedBuffers;
+
+    private volatile boolean aborted;
+
+
+    public BufferRing(BufferPool bufferPool, int bufferSize, int capacity) {
+        this.bufferPool = bufferPool;
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+
+        emptyBuffers = new ArrayBlockingQueue<ByteBuffer>(capacity + 1);
+        fullBuffers = new ArrayBlockingQueue<ByteBuffer>(capacity + 1);
+
+        leasedBuffers = new ArrayList<ByteBuffer>(capacity);
+
+        aborted = false;
+    }
+
+
+    // Producer: an empty buffer, cleared; null once the consumer has given up
+    public ByteBuffer acquire() throws InterruptedException {
+        if (aborted) {
+            return null;
+        }
+
+        ByteBuffer buffer = emptyBuffers.poll();
+
+        if (buffer == null && leasedBuffers.size() < capacity) {
+            buffer = bufferPool.lease(bufferSize);
+            leasedBuffers.add(buffer);
+        }
+
+        if (buffer == null) {
+            buffer = emptyBuffers.take();
+        }
+
+        if (buffer == ABORTED) {
+            return null;
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    // Producer: the buffer, flipped, is ready to be drained
+    public void submit(ByteBuffer buffer) {
+        fullBuffers.add(buffer);
+    }
+
+    // Producer: nothing more will be submitted
+    public void finish() {
+        fullBuffers.add(END);
+    }
+
+
+    // Consumer: the next buffer to drain, null once the producer has finished
+    public ByteBuffer next() throws InterruptedException {
+        ByteBuffer buffer = fullBuffers.take();
+
+        return (buffer == END) ? null : buffer;
+    }
+
+    // Either side: the buffer can be filled again
+    public void recycle(ByteBuffer buffer) {
+        emptyBuffers.add(buffer);
+    }
+
+    // Consumer: stop the producer, which may be waiting for an empty buffer
+    public void abort() {
+        aborted = true;
+        emptyBuffers.offer(ABORTED);
+    }
+
+
+    // Once both sides are done: every buffer goes back to the pool
+    public void close() {
+        for (ByteBuffer buffer: leasedBuffers) {
+            bufferPool.release(buffer);
+        }
+
+        leasedBuffers.clear();
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+
+// Digest of the file data, updated by the copy loop of a transfer as the bytes go through,
+// so that checking a file never takes a second pass over it.
+// The server is asked for its own digest with HASH when it advertises the algorithm in FEAT,
+// otherwise with the older X command of the algorithm (XCRC, XMD5, ...), if it has one.
+// Other algorithms can be plugged in with the public constructor.
+public class ChecksumAlgorithm {
+    // One digest being computed
+    public interface Digester {
+        void update(ByteBuffer data);
+
+        byte[] digest();
+    }
+
+
+    public static final ChecksumAlgorithm CRC32 = new ChecksumAlgorithm(
+            "CRC32", "XCRC", () -> checksumDigester(new CRC32())
+    );
+
+    // java.util.zip.CRC32C only exists from Java 9 on
+    public static final ChecksumAlgorithm CRC32C = new ChecksumAlgorithm(
+            "CRC32C", null, () -> checksumDigester(newChecksum("java.util.zip.CRC32C"))
+    );
+
+    public static final ChecksumAlgorithm MD5 = messageDigest("MD5", "XMD5");
+    public static final ChecksumAlgorithm SHA_1 = messageDigest("SHA-1", "XSHA1");
+    public static final ChecksumAlgorithm SHA_256 = messageDigest("SHA-256", "XSHA256");
+    public static final ChecksumAlgorithm SHA_512 = messageDigest("SHA-512", "XSHA512");
+
+    // Bytes copied at a time out of a direct buffer, for checksums that only take arrays
+    private static final int COPY_SIZE = 8 * 1024;
+
+
+    private String name;
+    private String legacyCommand;
+    private Supplier<Digester> digesterFactory;
+
+
+    // name is the one used with HASH; legacyCommand is the X command of the algorithm, or null if it has none
+    public ChecksumAlgorithm(String name, String legacyCommand, Supplier<Digester> digesterFactory) {
+        this.name = name;
+        this.legacyCommand = legacyCommand;
+        this.digesterFactory = digesterFactory;
+    }
+
+
+    public static ChecksumAlgorithm forName(String name) {
+        for (ChecksumAlgorithm algorithm: new ChecksumAlgorithm[]{CRC32, CRC32C, MD5, SHA_1, SHA_256, SHA_512}) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown checksum algorithm '%s'", name));
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLegacyCommand() {
+        return legacyCommand;
+    }
+
+
+    // Exception: the algorithm is not available on this Java runtime
+    public Digester newDigester() {
+        return digesterFactory.get();
+    }
+
+
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+
+        for (byte b: digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+
+    private static ChecksumAlgorithm messageDigest(String name, String legacyCommand) {
+        return new ChecksumAlgorithm(name, legacyCommand, () -> {
+            MessageDigest messageDigest;
+
+            try {
+                messageDigest = MessageDigest.getInstance(name);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(String.format("Checksum algorithm '%s' is not available", name));
+            }
+
+            return new Digester() {
+                @Override
+                public void update(ByteBuffer data) {
+                    messageDigest.update(data);
+                }
+
+                @Override
+                public byte[] digest() {
+                    return messageDigest.digest();
+                }
+            };
+        });
+    }
+
+
+    private static Checksum newChecksum(String className) {
+        try {
+            return (Checksum) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException(String.format("Checksum class '%s' is not available", className));
+        }
+
+    }
+
+
+    // The 32-bit value, most significant byte first
+    private static Digester checksumDigester(Checksum checksum) {
+        return new Digester() {
+            private byte[] copy;
+
+            @Override
+            public void update(ByteBuffer data) {
+                if (checksum instanceof CRC32) {
+                    ((CRC32) checksum).update(data);
+                    return;
+                }
+
+                if (data.hasArray()) {
+                    checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    data.position(data.limit());
+                    return;
+                }
+
+                if (copy == null) {
+                    copy = new byte[COPY_SIZE];
+                }
+
+                while (data.hasRemaining()) {
+                    int length = Math.min(copy.length, data.remaining());
+
+                    data.get(copy, 0, length);
+                    checksum.update(copy, 0, length);
+                }
+
+            }
+
+            @Override
+            public byte[] digest() {
+                long value = checksum.getValue();
+
+                return new byte[]{
+                        (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value
+                };
+            }
+        };
+    }
+
+}
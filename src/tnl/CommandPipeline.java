@@ -0,0 +1,115 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Batch of DELE / MKD / CWD commands sent back-to-back on one control connection.
+// The server answers commands in the order it receives them, so the replies are matched to the
+// commands by position; a batch costs about one round trip instead of one per command.
+// At most maxInFlight commands are written ahead of their replies.
+public class CommandPipeline {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+
+    private static class Command {
+        public String request;
+        public String[] arguments;
+
+        public Command(String request, String... arguments) {
+            this.request = request;
+            this.arguments = arguments;
+        }
+
+    }
+
+
+    private FTPClient session;
+    private int maxInFlight;
+    private List<Command> commands;
+
+
+    public CommandPipeline(FTPClient session) {
+        this(session, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+
+    public CommandPipeline(FTPClient session, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one command must be allowed in flight");
+        }
+
+        this.session = session;
+        this.maxInFlight = maxInFlight;
+        this.commands = new ArrayList<Command>();
+    }
+
+
+    public CommandPipeline delete(String path) {
+        commands.add(new Command(FTPRequestCode.DELETE, path));
+        return this;
+    }
+
+    public CommandPipeline mkdir(String path) {
+        commands.add(new Command(FTPRequestCode.MAKE_NEW_DIRECTORY, path));
+        return this;
+    }
+
+    // A null path goes back to the root directory of the user
+    public CommandPipeline cwd(String path) {
+        if (path == null) {
+            commands.add(new Command(FTPRequestCode.GOTO_DIRECTORY));
+        } else {
+            commands.add(new Command(FTPRequestCode.GOTO_DIRECTORY, path));
+        }
+
+        return this;
+    }
+
+
+    public int size() {
+        return commands.size();
+    }
+
+
+    // Send every command and return one result per command, in the order they were added.
+    // A failed command does not stop the ones after it.
+    // Exception: the session has been terminated
+    public List<CommandResult> execute() throws AutoTerminatedException {
+        List<CommandResult> results = new ArrayList<CommandResult>();
+
+        int sent = 0;
+
+        while (results.size() < commands.size()) {
+            // Top up the window, then wait for the oldest reply
+            if (sent < commands.size() && sent - results.size() < maxInFlight) {
+                while (sent < commands.size() && sent - results.size() < maxInFlight) {
+                    Command command = commands.get(sent);
+                    session.queueRequest(command.request, command.arguments);
+
+                    ++sent;
+                }
+
+                session.flushRequests();
+            }
+
+            Command command = commands.get(results.size());
+            CommandResult result = session.commandResult(session.getResponse());
+
+            session.commandDone(command.request, command.arguments.length == 0 ? null : command.arguments[0], result);
+
+            results.add(result);
+        }
+
+        commands.clear();
+
+        return results;
+    }
+
+}
@@ -0,0 +1,37 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+// Outcome of a command that does not transfer a file (rm, mkdir, cd, ls)
+public class CommandResult {
+    private boolean successful;
+    private String message;
+
+
+    public CommandResult(boolean successful, String message) {
+        this.successful = successful;
+        this.message = message;
+    }
+
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("%s %s", successful ? "SUCCEEDED" : "FAILED", message);
+    }
+
+}
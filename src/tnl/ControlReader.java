@@ -0,0 +1,239 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+
+// Reads the replies of the control connection straight from the socket's bytes, in UTF-8.
+// The reply code is parsed from the line's bytes; only the message (and the inner lines, when asked for)
+// are decoded into strings.
+// A reply may span several lines (RFC 959 4.2): "211-First line", any lines, then "211 Last line".
+// Either blocks on an InputStream, or is fed by a non-blocking channel and keeps a partial reply
+// until the rest of it arrives.
+class ControlReader {
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int INITIAL_LINE_SIZE = 256;
+
+
+    // null when fed by a channel
+    private InputStream inStream;
+
+    // Bytes read, not consumed yet: [start, end)
+    private byte[] buffer;
+    private ByteBuffer channelBuffer;
+    private int start;
+    private int end;
+
+    // Current line, without its line terminator; lineComplete once its LF has been read
+    private byte[] line;
+    private int lineLength;
+    private boolean lineComplete;
+
+    // Code of the multi-line reply being read, or -1 between replies
+    private int multilineCode;
+
+
+    // Fed by a channel through readResponse(ReadableByteChannel, List)
+    public ControlReader() {
+        this(null);
+    }
+
+
+    public ControlReader(InputStream inStream) {
+        this.inStream = inStream;
+
+        buffer = new byte[READ_BUFFER_SIZE];
+        channelBuffer = ByteBuffer.wrap(buffer);
+        start = 0;
+        end = 0;
+
+        line = new byte[INITIAL_LINE_SIZE];
+        lineLength = 0;
+        lineComplete = false;
+
+        multilineCode = -1;
+    }
+
+
+    // The lines before the last line of the reply are added to innerLines, or skipped if it is null.
+    // Returns null at the end of the stream.
+    // Exception: ProtocolException if a line is not a reply, other IOException if the stream fails
+    public FTPResponse readResponse(List<String> innerLines) throws IOException {
+        FTPResponse response;
+
+        while ((response = nextResponse(innerLines)) == null) {
+            int read = inStream.read(buffer, 0, buffer.length);
+
+            if (read == -1) {
+                return null;
+            }
+
+            start = 0;
+            end = read;
+        }
+
+        return response;
+    }
+
+
+    // Non-blocking: reads what the channel has, and returns null if that does not complete a reply.
+    // Replies that arrived together are returned by the following calls.
+    // Exception: EOFException at the end of the stream, otherwise as readResponse(List)
+    public FTPResponse readResponse(ReadableByteChannel channel, List<String> innerLines) throws IOException {
+        FTPResponse response;
+
+        while ((response = nextResponse(innerLines)) == null) {
+            channelBuffer.clear();
+            int read = channel.read(channelBuffer);
+
+            if (read == -1) {
+                throw new EOFException("Connection closed by server");
+            }
+
+            if (read == 0) {
+                return null;
+            }
+
+            start = 0;
+            end = read;
+        }
+
+        return response;
+    }
+
+
+    public void close() throws IOException {
+        if (inStream != null) {
+            inStream.close();
+        }
+
+    }
+
+
+    // Three digits at the start of the line, or -1
+    static int parseCode(byte[] line, int length) {
+        if (length < 3) {
+            return -1;
+        }
+
+        int code = 0;
+
+        for (int i = 0; i < 3; ++i) {
+            int digit = line[i] - '0';
+
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+
+            code = code * 10 + digit;
+        }
+
+        return code;
+    }
+
+
+    // A reply made of the buffered lines, or null once the buffer is used up before the reply is complete
+    private FTPResponse nextResponse(List<String> innerLines) throws IOException {
+        while (nextLine()) {
+            if (multilineCode == -1) {
+                int code = parseCode(line, lineLength);
+
+                if (code == -1) {
+                    throw new ProtocolException("Invalid response");
+                }
+
+                if (lineLength > 3 && line[3] == '-') {
+                    multilineCode = code;
+                    continue;
+                }
+
+                if (lineLength > 3 && line[3] != ' ') {
+                    throw new ProtocolException("Invalid response");
+                }
+
+                return lastLine(code);
+            }
+
+            // Only "<code> " ends the reply; inner lines may start with anything, the code included
+            if (lineLength >= 4 && line[3] == ' ' && parseCode(line, lineLength) == multilineCode) {
+                int code = multilineCode;
+                multilineCode = -1;
+
+                return lastLine(code);
+            }
+
+            if (innerLines != null) {
+                innerLines.add(new String(line, 0, lineLength, StandardCharsets.UTF_8));
+            }
+        }
+
+        return null;
+    }
+
+    private FTPResponse lastLine(int code) throws ProtocolException {
+        if (!FTPResponseCode.isValidCode(code)) {
+            throw new ProtocolException("Invalid response");
+        }
+
+        String message = (lineLength > 4) ? new String(line, 4, lineLength - 4, StandardCharsets.UTF_8) : "";
+
+        return new FTPResponse(code, message);
+    }
+
+
+    // TRUE once a whole line is in line; FALSE if the buffer ran out first, the partial line being kept.
+    // Lines end with LF; a CR right before it is dropped.
+    private boolean nextLine() {
+        if (lineComplete) {
+            lineLength = 0;
+            lineComplete = false;
+        }
+
+        int index = start;
+        while (index < end && buffer[index] != '\n') {
+            ++index;
+        }
+
+        append(start, index);
+
+        if (index == end) {
+            start = end;
+            return false;
+        }
+
+        start = index + 1;
+
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+            --lineLength;
+        }
+
+        lineComplete = true;
+        return true;
+    }
+
+    private void append(int from, int to) {
+        int length = to - from;
+
+        if (lineLength + length > line.length) {
+            byte[] larger = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, larger, 0, lineLength);
+            line = larger;
+        }
+
+        System.arraycopy(buffer, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+}
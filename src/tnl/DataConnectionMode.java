@@ -0,0 +1,20 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+public enum DataConnectionMode {
+    // PORT: the server connects back to a port listened on by the client
+    ACTIVE,
+
+    // PASV: the client connects to an IPv4 address/port announced by the server
+    PASSIVE,
+
+    // EPSV: as PASV, but only the port is announced and the control connection's address is reused
+    EXTENDED_PASSIVE
+}
@@ -0,0 +1,28 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.net.Socket;
+
+
+// How the data connection of a transfer is set up.
+// open() negotiates the connection on the control channel, before the transfer command is sent.
+// The returned DataConnection hands out the socket once the server has answered the transfer command.
+interface DataConnectionStrategy {
+
+    interface DataConnection {
+        Socket accept() throws Exception;
+
+        // The transfer command was refused, release whatever was reserved for it
+        void cancel();
+    }
+
+
+    // Returns null if the server refuses this kind of data connection
+    DataConnection open(FTPClient client) throws AutoTerminatedException;
+
+}
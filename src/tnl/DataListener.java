@@ -0,0 +1,246 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+
+
+// Long-lived listener for active-mode data connections.
+// Every port of the range is bound once (with SO_REUSEADDR) and stays bound for the life of the JVM.
+// A port is leased to exactly one PORT command at a time, so the connection accepted on it belongs to that command.
+// Clients configured with the same range share one listener; ranges that only overlap are refused.
+class DataListener {
+    private static final HashMap<String, DataListener> LISTENERS = new HashMap<String, DataListener>();
+
+    // A port that could not be bound is tried again after this long
+    private static final long BIND_RETRY_DELAY = 1000;
+
+
+    public class PortLease {
+        private int index;
+        private boolean released;
+
+        private PortLease(int index) {
+            this.index = index;
+            this.released = false;
+        }
+
+        public int getPort() {
+            return firstPort + index;
+        }
+
+        // Accept the connection the server opens for this lease's PORT command
+        public Socket accept(InetAddress serverAddress, int timeout) throws IOException {
+            ServerSocketChannel channel = channels[index];
+            channel.socket().setSoTimeout(timeout);
+
+            long deadline = System.currentTimeMillis() + timeout;
+
+            while (true) {
+                Socket dataSocket = channel.socket().accept();
+
+                // Only the server of the control connection may connect; drop anyone else and keep waiting
+                if (dataSocket.getInetAddress().equals(serverAddress)) {
+                    return dataSocket;
+                }
+
+                try {
+                    dataSocket.close();
+                } catch (Exception e) {
+                    // Silently ignore the exception
+                }
+
+                int remaining = (int) (deadline - System.currentTimeMillis());
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No data connection from server");
+                }
+
+                channel.socket().setSoTimeout(remaining);
+            }
+
+        }
+
+        public void release() {
+            synchronized (DataListener.this) {
+                if (released) {
+                    return;
+                }
+
+                released = true;
+                leased[index] = false;
+
+                DataListener.this.notifyAll();
+            }
+
+        }
+
+    }
+
+
+    private int firstPort;
+    private int lastPort;
+    private ServerSocketChannel[] channels;
+    private boolean[] leased;
+
+    // Time (ms) before which a port that could not be bound is left out
+    private long[] unusableUntil;
+
+
+    private DataListener(int firstPort, int lastPort) {
+        this.firstPort = firstPort;
+        this.lastPort = lastPort;
+
+        int count = lastPort - firstPort + 1;
+        channels = new ServerSocketChannel[count];
+        leased = new boolean[count];
+        unusableUntil = new long[count];
+    }
+
+
+    public static DataListener forRange(int firstPort, int lastPort) {
+        if (firstPort <= 0 || lastPort > 65535 || firstPort > lastPort) {
+            throw new IllegalArgumentException("Invalid data port range");
+        }
+
+        String key = firstPort + "-" + lastPort;
+
+        synchronized (LISTENERS) {
+            DataListener listener = LISTENERS.get(key);
+            if (listener != null) {
+                return listener;
+            }
+
+            // Two listeners on the same ports would take each other's connections
+            for (DataListener other: LISTENERS.values()) {
+                if (firstPort <= other.lastPort && other.firstPort <= lastPort) {
+                    throw new IllegalArgumentException(String.format(
+                            "Data port range %s overlaps the range %d-%d already in use", key, other.firstPort, other.lastPort
+                    ));
+                }
+            }
+
+            listener = new DataListener(firstPort, lastPort);
+            LISTENERS.put(key, listener);
+
+            return listener;
+        }
+
+    }
+
+
+    // Wait until a port of the range is free and reserve it
+    public synchronized PortLease lease(int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            boolean anyUsable = false;
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < channels.length; ++i) {
+                if (now < unusableUntil[i]) {
+                    continue;
+                }
+
+                anyUsable = true;
+
+                if (leased[i]) {
+                    continue;
+                }
+
+                if (!bind(i)) {
+                    continue;
+                }
+
+                discardStaleConnections(channels[i]);
+
+                leased[i] = true;
+                return new PortLease(i);
+            }
+
+            if (!anyUsable) {
+                throw new IOException("No data port of the range could be bound");
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("All data ports are in use");
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a data port");
+            }
+
+        }
+
+    }
+
+
+    private boolean bind(int index) {
+        if (channels[index] != null) {
+            return true;
+        }
+
+        ServerSocketChannel channel = null;
+
+        try {
+            channel = ServerSocketChannel.open();
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(firstPort + index));
+
+            channels[index] = channel;
+            return true;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    // Silently ignore the exception
+                }
+            }
+
+            // Port taken by another process, maybe only for a while: leave it out until the delay is over
+            unusableUntil[index] = System.currentTimeMillis() + BIND_RETRY_DELAY;
+            return false;
+        }
+
+    }
+
+
+    // A server may connect late for a transfer that was already given up; such connections must
+    // not be handed to the next PORT command on the same port
+    private static void discardStaleConnections(ServerSocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+
+            SocketChannel stale;
+            while ((stale = channel.accept()) != null) {
+                stale.close();
+            }
+
+        } catch (IOException e) {
+            // Silently ignore the exception
+        } finally {
+            try {
+                channel.configureBlocking(true);
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,903 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+
+// Moves file data between a data connection and a local file.
+// When the data socket is backed by a SocketChannel, the copy is done with
+// FileChannel.transferFrom/transferTo so that the kernel moves the bytes (sendfile on upload).
+// Otherwise, it falls back to a copy loop over a direct buffer leased from the shared BufferPool.
+// A transfer that computes a checksum always takes the copy loop, since the digest needs to see the bytes.
+// In MODE Z, the data connection carries a deflate stream: the copy loop runs the file data through
+// Deflater/Inflater, over heap arrays since those only take arrays on Java 8.
+// Every chunk is paid for to the BandwidthLimiters of the transfer, counted as the bytes on the wire;
+// zero-copy chunks are cut down to the chunk size when the transfer is limited, so that it stays smooth.
+// A pipelined transfer runs the disk side on a thread of its own, connected to the socket side by a
+// BufferRing: neither waits for the other until the ring is full (or empty), and then only the faster one does.
+class DataTransfer {
+    public static final int NO_ERROR = 0;
+    public static final int LOCAL_ERROR = 1;
+    public static final int REMOTE_ERROR = 2;
+
+    public static final int NO_COMPRESSION = -1;
+
+    // Upper bound of a single transferFrom/transferTo call
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    // Chunks in flight between the two sides of a pipelined transfer
+    private static final int PIPELINE_BUFFERS = 8;
+
+    // Disk side of pipelined transfers; threads die off when idle
+    private static final ExecutorService DISK_STAGE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ftp-disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    // Called from the copy loops every time another interval of bytes has gone through
+    interface Checkpoint {
+        void reached(long bytesTransferred) throws IOException;
+    }
+
+
+    // Destination of the buffered copy loop
+    private interface Sink {
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+
+    private static class FileSink implements Sink {
+        private FileChannel fileChannel;
+        private long position;
+
+        public FileSink(FileChannel fileChannel, long position) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+        }
+
+    }
+
+
+    private static class StreamSink implements Sink {
+        private WritableByteChannel channel;
+
+        public StreamSink(OutputStream outStream) {
+            this.channel = Channels.newChannel(outStream);
+        }
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+    }
+
+
+    // Wraps the socket channel so that a failed read can be told apart from a failed file write
+    private static class TrackedReadChannel implements ReadableByteChannel {
+        private ReadableByteChannel channel;
+        private boolean readFailed;
+
+        public TrackedReadChannel(ReadableByteChannel channel) {
+            this.channel = channel;
+            this.readFailed = false;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            try {
+                return channel.read(dst);
+            } catch (IOException e) {
+                readFailed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+    }
+
+
+    private boolean zeroCopyEnabled;
+    private int chunkSize;
+    private BufferPool bufferPool;
+
+    private boolean pipelined;
+
+    private Checkpoint checkpoint;
+    private long checkpointInterval;
+    private long lastCheckpoint;
+
+    private ChecksumAlgorithm.Digester digester;
+
+    // Deflate level of the data connection (MODE Z), or NO_COMPRESSION
+    private int compressionLevel;
+    private long compressedBytes;
+
+    private BandwidthLimiter[] bandwidthLimiters;
+
+    private long bytesTransferred;
+
+
+    public DataTransfer(boolean zeroCopyEnabled, int chunkSize) {
+        this.zeroCopyEnabled = zeroCopyEnabled;
+        this.chunkSize = chunkSize;
+        this.bufferPool = BufferPool.shared();
+        this.pipelined = false;
+        this.checkpoint = null;
+        this.digester = null;
+        this.compressionLevel = NO_COMPRESSION;
+        this.compressedBytes = -1;
+        this.bandwidthLimiters = new BandwidthLimiter[0];
+        this.bytesTransferred = 0;
+    }
+
+
+    public void setCheckpoint(long checkpointInterval, Checkpoint checkpoint) {
+        this.checkpointInterval = checkpointInterval;
+        this.checkpoint = checkpoint;
+        this.lastCheckpoint = 0;
+    }
+
+
+    // Run the disk side on its own thread. Worth it for large files only: the hand-over costs a thread switch.
+    // Downloads are then always copied through the ring, since transferFrom does not read a socket any faster
+    // than the copy loop; uploads keep sending with transferTo whenever they can.
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+
+    // Every limiter is paid for every chunk; the transfer goes at the pace of the slowest one
+    public void setBandwidthLimiters(BandwidthLimiter... bandwidthLimiters) {
+        this.bandwidthLimiters = bandwidthLimiters;
+    }
+
+
+    // Every byte that goes through the copy loop is added to the digest
+    public void setDigester(ChecksumAlgorithm.Digester digester) {
+        this.digester = digester;
+    }
+
+
+    // The data connection carries a deflate stream, compressed at the given level (1-9) on upload
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+
+    // Bytes that went through the data connection in MODE Z, -1 if the transfer was not compressed
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+
+    // Add the first length bytes of the file to the digest: the part of a resumed transfer
+    // that went through an earlier attempt
+    public int digestPrefix(FileChannel fileChannel, long length) {
+        ByteBuffer buffer = bufferPool.lease(chunkSize);
+        long position = 0;
+        int byteRead;
+
+        try {
+            while (position < length) {
+                buffer.clear();
+
+                if (length - position < buffer.capacity()) {
+                    buffer.limit((int) (length - position));
+                }
+
+                try {
+                    byteRead = fileChannel.read(buffer, position);
+                } catch (IOException e) {
+                    return LOCAL_ERROR;
+                }
+
+                if (byteRead == -1) {
+                    return LOCAL_ERROR;
+                }
+
+                buffer.flip();
+                digester.update(buffer);
+
+                position += byteRead;
+            }
+
+        } finally {
+            bufferPool.release(buffer);
+        }
+
+        return NO_ERROR;
+    }
+
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+
+    // Receive everything from the data connection into the file, starting at the given position
+    public int receive(Socket dataSocket, FileChannel fileChannel, long position) {
+        return receive(dataSocket, fileChannel, position, Long.MAX_VALUE);
+    }
+
+
+    // Receive at most limit bytes from the data connection into the file, starting at the given position
+    public int receive(Socket dataSocket, FileChannel fileChannel, long position, long limit) {
+        SocketChannel socketChannel = dataSocket.getChannel();
+
+        if (compressionLevel != NO_COMPRESSION) {
+            return receiveInflated(dataSocket, new FileSink(fileChannel, position), limit);
+        }
+
+        if (pipelined) {
+            return receivePipelined(dataSocket, new FileSink(fileChannel, position), limit);
+        }
+
+        if (!zeroCopyEnabled || socketChannel == null || digester != null) {
+            return receiveBuffered(dataSocket, new FileSink(fileChannel, position), limit);
+        }
+
+        TrackedReadChannel source = new TrackedReadChannel(socketChannel);
+        long maxChunkSize = isLimited() ? chunkSize : TRANSFER_CHUNK_SIZE;
+        long transferred;
+
+        while (bytesTransferred < limit) {
+            try {
+                transferred = fileChannel.transferFrom(
+                        source, position, Math.min(maxChunkSize, limit - bytesTransferred)
+                );
+            } catch (IOException e) {
+                return source.readFailed ? REMOTE_ERROR : LOCAL_ERROR;
+            }
+
+            // A blocking channel only transfers nothing when it reaches end-of-stream
+            if (transferred == 0) {
+                break;
+            }
+
+            position += transferred;
+            bytesTransferred += transferred;
+
+            if (!throttle(transferred) || !passCheckpoint()) {
+                return LOCAL_ERROR;
+            }
+        }
+
+        return NO_ERROR;
+    }
+
+
+    // Receive everything from the data connection into an in-memory/local stream
+    public int receive(Socket dataSocket, OutputStream outStream) {
+        int errorOccured = receiveBuffered(dataSocket, new StreamSink(outStream), Long.MAX_VALUE);
+
+        if (errorOccured == NO_ERROR) {
+            try {
+                outStream.flush();
+            } catch (IOException e) {
+                return LOCAL_ERROR;
+            }
+        }
+
+        return errorOccured;
+    }
+
+
+    // Send the file, starting at the given position, through the data connection
+    public int send(FileChannel fileChannel, long position, Socket dataSocket) {
+        SocketChannel socketChannel = dataSocket.getChannel();
+
+        if (compressionLevel != NO_COMPRESSION) {
+            return sendDeflated(fileChannel, position, dataSocket);
+        }
+
+        if (!zeroCopyEnabled || socketChannel == null || digester != null) {
+            return pipelined
+                    ? sendPipelined(fileChannel, position, dataSocket)
+                    : sendBuffered(fileChannel, position, dataSocket);
+        }
+
+        long size;
+        try {
+            size = fileChannel.size();
+        } catch (IOException e) {
+            return LOCAL_ERROR;
+        }
+
+        long maxChunkSize = isLimited() ? chunkSize : TRANSFER_CHUNK_SIZE;
+        long transferred;
+
+        while (position < size) {
+            try {
+                transferred = fileChannel.transferTo(position, Math.min(maxChunkSize, size - position), socketChannel);
+            } catch (IOException e) {
+                return fileChannel.isOpen() ? REMOTE_ERROR : LOCAL_ERROR;
+            }
+
+            position += transferred;
+            bytesTransferred += transferred;
+
+            if (!throttle(transferred) || !passCheckpoint()) {
+                return LOCAL_ERROR;
+            }
+        }
+
+        return NO_ERROR;
+    }
+
+
+    private int receiveBuffered(Socket dataSocket, Sink sink, long limit) {
+        ReadableByteChannel source;
+
+        try {
+            source = readChannelOf(dataSocket);
+        } catch (IOException e) {
+            return REMOTE_ERROR;
+        }
+
+        ByteBuffer buffer = bufferPool.lease(chunkSize);
+        int byteReceived;
+
+        try {
+            while (bytesTransferred < limit) {
+                buffer.clear();
+
+                if (limit - bytesTransferred < buffer.capacity()) {
+                    buffer.limit((int) (limit - bytesTransferred));
+                }
+
+                try {
+                    byteReceived = source.read(buffer);
+                } catch (IOException e) {
+                    return REMOTE_ERROR;
+                }
+
+                if (byteReceived == -1) {
+                    break;
+                }
+
+                buffer.flip();
+                updateDigest(buffer);
+
+                try {
+                    sink.write(buffer);
+                } catch (IOException e) {
+                    return LOCAL_ERROR;
+                }
+
+                bytesTransferred += byteReceived;
+
+                if (!throttle(byteReceived) || !passCheckpoint()) {
+                    return LOCAL_ERROR;
+                }
+            }
+
+        } finally {
+            bufferPool.release(buffer);
+        }
+
+        return NO_ERROR;
+    }
+
+
+    private int sendBuffered(FileChannel fileChannel, long position, Socket dataSocket) {
+        WritableByteChannel target;
+        OutputStream dataSocketOutStream;
+
+        try {
+            dataSocketOutStream = dataSocket.getOutputStream();
+            target = (dataSocket.getChannel() != null) ? dataSocket.getChannel() : Channels.newChannel(dataSocketOutStream);
+        } catch (IOException e) {
+            return REMOTE_ERROR;
+        }
+
+        ByteBuffer buffer = bufferPool.lease(chunkSize);
+        int byteSent;
+
+        try {
+            while (true) {
+                buffer.clear();
+
+                try {
+                    byteSent = fileChannel.read(buffer, position);
+                } catch (IOException e) {
+                    return LOCAL_ERROR;
+                }
+
+                if (byteSent == -1) {
+                    break;
+                }
+
+                buffer.flip();
+                updateDigest(buffer);
+
+                try {
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                } catch (IOException e) {
+                    return REMOTE_ERROR;
+                }
+
+                position += byteSent;
+                bytesTransferred += byteSent;
+
+                if (!throttle(byteSent) || !passCheckpoint()) {
+                    return LOCAL_ERROR;
+                }
+            }
+
+            // Flush only once, at the end of the stream
+            try {
+                dataSocketOutStream.flush();
+            } catch (IOException e) {
+                return REMOTE_ERROR;
+            }
+
+        } finally {
+            bufferPool.release(buffer);
+        }
+
+        return NO_ERROR;
+    }
+
+
+    // The socket is read on the calling thread, the file written (and digested, and checkpointed) on the disk side.
+    // Every chunk received has been written by the time this returns, so that checkpoints stay exact.
+    private int receivePipelined(Socket dataSocket, Sink sink, long limit) {
+        ReadableByteChannel source;
+
+        try {
+            source = readChannelOf(dataSocket);
+        } catch (IOException e) {
+            return REMOTE_ERROR;
+        }
+
+        BufferRing ring = new BufferRing(bufferPool, chunkSize, PIPELINE_BUFFERS);
+
+        Future<Integer> diskStage = DISK_STAGE_EXECUTOR.submit(() -> {
+            ByteBuffer buffer;
+
+            while ((buffer = ring.next()) != null) {
+                int byteReceived = buffer.remaining();
+                updateDigest(buffer);
+
+                try {
+                    sink.write(buffer);
+                } catch (IOException e) {
+                    ring.abort();
+                    return LOCAL_ERROR;
+                }
+
+                ring.recycle(buffer);
+                bytesTransferred += byteReceived;
+
+                if (!passCheckpoint()) {
+                    ring.abort();
+                    return LOCAL_ERROR;
+                }
+            }
+
+            return NO_ERROR;
+        });
+
+        int errorOccured = NO_ERROR;
+        long bytesReceived = 0;
+        int byteReceived;
+
+        try {
+            while (bytesReceived < limit) {
+                ByteBuffer buffer = ring.acquire();
+
+                // The disk side failed: its error is the one reported
+                if (buffer == null) {
+                    break;
+                }
+
+                if (limit - bytesReceived < buffer.capacity()) {
+                    buffer.limit((int) (limit - bytesReceived));
+                }
+
+                try {
+                    byteReceived = source.read(buffer);
+                } catch (IOException e) {
+                    ring.recycle(buffer);
+                    errorOccured = REMOTE_ERROR;
+                    break;
+                }
+
+                if (byteReceived == -1) {
+                    ring.recycle(buffer);
+                    break;
+                }
+
+                buffer.flip();
+                ring.submit(buffer);
+
+                bytesReceived += byteReceived;
+
+                if (!throttle(byteReceived)) {
+                    errorOccured = LOCAL_ERROR;
+                    break;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errorOccured = LOCAL_ERROR;
+        }
+
+        ring.finish();
+
+        int diskError = awaitDiskStage(diskStage);
+        ring.close();
+
+        return (diskError != NO_ERROR) ? diskError : errorOccured;
+    }
+
+
+    // The file is read ahead (and digested) on the disk side, the socket written on the calling thread
+    private int sendPipelined(FileChannel fileChannel, long position, Socket dataSocket) {
+        WritableByteChannel target;
+        OutputStream dataSocketOutStream;
+
+        try {
+            dataSocketOutStream = dataSocket.getOutputStream();
+            target = (dataSocket.getChannel() != null) ? dataSocket.getChannel() : Channels.newChannel(dataSocketOutStream);
+        } catch (IOException e) {
+            return REMOTE_ERROR;
+        }
+
+        BufferRing ring = new BufferRing(bufferPool, chunkSize, PIPELINE_BUFFERS);
+
+        Future<Integer> diskStage = DISK_STAGE_EXECUTOR.submit(() -> {
+            long readPosition = position;
+            int byteRead;
+
+            try {
+                while (true) {
+                    ByteBuffer buffer = ring.acquire();
+
+                    // The socket side gave up
+                    if (buffer == null) {
+                        return NO_ERROR;
+                    }
+
+                    try {
+                        byteRead = fileChannel.read(buffer, readPosition);
+                    } catch (IOException e) {
+                        return LOCAL_ERROR;
+                    }
+
+                    if (byteRead == -1) {
+                        return NO_ERROR;
+                    }
+
+                    buffer.flip();
+                    updateDigest(buffer);
+
+                    ring.submit(buffer);
+                    readPosition += byteRead;
+                }
+
+            } finally {
+                ring.finish();
+            }
+
+        });
+
+        int errorOccured = NO_ERROR;
+        int byteSent;
+
+        try {
+            ByteBuffer buffer;
+
+            while ((buffer = ring.next()) != null) {
+                byteSent = buffer.remaining();
+
+                try {
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                } catch (IOException e) {
+                    errorOccured = REMOTE_ERROR;
+                    break;
+                }
+
+                ring.recycle(buffer);
+                bytesTransferred += byteSent;
+
+                if (!throttle(byteSent) || !passCheckpoint()) {
+                    errorOccured = LOCAL_ERROR;
+                    break;
+                }
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errorOccured = LOCAL_ERROR;
+        }
+
+        if (errorOccured != NO_ERROR) {
+            ring.abort();
+        }
+
+        int diskError = awaitDiskStage(diskStage);
+        ring.close();
+
+        if (errorOccured != NO_ERROR || diskError != NO_ERROR) {
+            return (errorOccured != NO_ERROR) ? errorOccured : diskError;
+        }
+
+        // Flush only once, at the end of the stream
+        try {
+            dataSocketOutStream.flush();
+        } catch (IOException e) {
+            return REMOTE_ERROR;
+        }
+
+        return NO_ERROR;
+    }
+
+
+    // Waits for the disk side even if interrupted: it still holds buffers of the ring, and the file
+    private static int awaitDiskStage(Future<Integer> diskStage) {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    return diskStage.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return LOCAL_ERROR;
+                }
+            }
+
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+        }
+
+    }
+
+
+    // A stream that ends before the end of the deflate data is reported as a remote error
+    private int receiveInflated(Socket dataSocket, Sink sink, long limit) {
+        Inflater inflater = new Inflater();
+        InflaterInputStream source;
+
+        try {
+            source = new InflaterInputStream(dataSocket.getInputStream(), inflater, chunkSize);
+        } catch (IOException e) {
+            inflater.end();
+            return REMOTE_ERROR;
+        }
+
+        byte[] output = new byte[chunkSize];
+        int byteReceived;
+        long compressedBytesPaid = 0;
+
+        try {
+            while (bytesTransferred < limit) {
+                try {
+                    byteReceived = source.read(output, 0, (int) Math.min(output.length, limit - bytesTransferred));
+                } catch (IOException e) {
+                    return REMOTE_ERROR;
+                }
+
+                if (byteReceived == -1) {
+                    break;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(output, 0, byteReceived);
+                updateDigest(buffer);
+
+                try {
+                    sink.write(buffer);
+                } catch (IOException e) {
+                    return LOCAL_ERROR;
+                }
+
+                bytesTransferred += byteReceived;
+
+                if (!throttle(inflater.getBytesRead() - compressedBytesPaid) || !passCheckpoint()) {
+                    return LOCAL_ERROR;
+                }
+
+                compressedBytesPaid = inflater.getBytesRead();
+            }
+
+        } finally {
+            compressedBytes = inflater.getBytesRead();
+            inflater.end();
+        }
+
+        return NO_ERROR;
+    }
+
+
+    private int sendDeflated(FileChannel fileChannel, long position, Socket dataSocket) {
+        Deflater deflater = new Deflater(compressionLevel);
+        DeflaterOutputStream target;
+
+        try {
+            target = new DeflaterOutputStream(dataSocket.getOutputStream(), deflater, chunkSize);
+        } catch (IOException e) {
+            deflater.end();
+            return REMOTE_ERROR;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+        int byteSent;
+        long compressedBytesPaid = 0;
+
+        try {
+            while (true) {
+                buffer.clear();
+
+                try {
+                    byteSent = fileChannel.read(buffer, position);
+                } catch (IOException e) {
+                    return LOCAL_ERROR;
+                }
+
+                if (byteSent == -1) {
+                    break;
+                }
+
+                buffer.flip();
+                updateDigest(buffer);
+
+                try {
+                    target.write(buffer.array(), 0, byteSent);
+                } catch (IOException e) {
+                    return REMOTE_ERROR;
+                }
+
+                position += byteSent;
+                bytesTransferred += byteSent;
+
+                if (!throttle(deflater.getBytesWritten() - compressedBytesPaid) || !passCheckpoint()) {
+                    return LOCAL_ERROR;
+                }
+
+                compressedBytesPaid = deflater.getBytesWritten();
+            }
+
+            // End the deflate stream, so that the server knows the file is complete
+            try {
+                target.finish();
+                target.flush();
+            } catch (IOException e) {
+                return REMOTE_ERROR;
+            }
+
+        } finally {
+            compressedBytes = deflater.getBytesWritten();
+            deflater.end();
+        }
+
+        return NO_ERROR;
+    }
+
+
+    // The buffer is left as it was, ready to be written
+    private void updateDigest(ByteBuffer buffer) {
+        if (digester == null) {
+            return;
+        }
+
+        int position = buffer.position();
+
+        digester.update(buffer);
+        buffer.position(position);
+    }
+
+
+    private boolean isLimited() {
+        for (BandwidthLimiter bandwidthLimiter: bandwidthLimiters) {
+            if (bandwidthLimiter.isLimited()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    // Wait until the chunk just transferred is within every limit.
+    // FALSE if the transfer has been interrupted
+    private boolean throttle(long bytes) {
+        long waitNanos = 0;
+
+        for (BandwidthLimiter bandwidthLimiter: bandwidthLimiters) {
+            waitNanos = Math.max(waitNanos, bandwidthLimiter.reserve(bytes));
+        }
+
+        if (waitNanos == 0) {
+            return true;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return true;
+    }
+
+
+    private boolean passCheckpoint() {
+        if (checkpoint == null || bytesTransferred - lastCheckpoint < checkpointInterval) {
+            return true;
+        }
+
+        lastCheckpoint = bytesTransferred;
+
+        try {
+            checkpoint.reached(bytesTransferred);
+        } catch (IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+
+    private static ReadableByteChannel readChannelOf(Socket dataSocket) throws IOException {
+        if (dataSocket.getChannel() != null) {
+            return dataSocket.getChannel();
+        }
+
+        return Channels.newChannel(dataSocket.getInputStream());
+    }
+
+}
@@ -0,0 +1,417 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// End-to-end benchmark: N concurrent sessions run a workload against a server and the tool reports
+// operations per second, MB/s and latency percentiles by operation.
+// Without --server, an in-process StandInServer over a temporary directory is benchmarked, so that
+// numbers can be taken on a single machine; with --server, the same workload runs against a real server.
+//
+//   java tnl.FTPBench [--workload small|large|list] [--sessions <n>] [--files <n>] [--size <bytes>]
+//                     [--rounds <n>] [--mode active|passive] [--data-ports <first>-<last>]
+//                     [--server <host>:<port> --user <name> --password <password>]
+//
+// small: every session uploads, downloads and deletes --files files of --size bytes (default 4 KB)
+// large: every session uploads, downloads and deletes one file of --size bytes (default 64 MB)
+// list:  every session lists a directory of --files entries, --rounds times, without the listing cache
+public class FTPBench {
+    private static final int DEFAULT_SESSIONS = 4;
+    private static final int DEFAULT_FILES = 200;
+    private static final long DEFAULT_SMALL_FILE_SIZE = 4 * 1024;
+    private static final long DEFAULT_LARGE_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int DEFAULT_ROUNDS = 50;
+    private static final int DEFAULT_FIRST_DATA_PORT = 7100;
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+
+    private static class Settings {
+        public String workload = "small";
+        public int sessions = DEFAULT_SESSIONS;
+        public int files = DEFAULT_FILES;
+        public long size = -1;
+        public int rounds = DEFAULT_ROUNDS;
+        public DataConnectionMode mode = DataConnectionMode.ACTIVE;
+        public int firstDataPort = DEFAULT_FIRST_DATA_PORT;
+        public int lastDataPort = -1;
+
+        public String host = null;
+        public int port;
+        public String user = "bench";
+        public String password = "bench";
+    }
+
+
+    // One session's share of the workload; throws if an operation fails
+    private interface Workload {
+        void run(FTPClient session, int index, Path clientDirectory) throws Exception;
+    }
+
+
+    private Settings settings;
+
+    private Map<String, Histogram> latencies;
+    private LongAdder operations;
+    private LongAdder bytes;
+
+
+    private FTPBench(Settings settings) {
+        this.settings = settings;
+        this.latencies = new TreeMap<String, Histogram>();
+        this.operations = new LongAdder();
+        this.bytes = new LongAdder();
+    }
+
+
+    public static void main(String[] argv) throws Exception {
+        Settings settings;
+
+        try {
+            settings = parseArguments(argv);
+        } catch (Exception e) {
+            System.out.println("Invalid arguments! " + e.getMessage());
+            return;
+        }
+
+        Path clientDirectory = Files.createTempDirectory("ftpbench-client");
+        Path serverDirectory = null;
+        StandInServer server = null;
+
+        try {
+            if (settings.host == null) {
+                serverDirectory = Files.createTempDirectory("ftpbench-server");
+                server = new StandInServer(serverDirectory, 0);
+                server.start();
+
+                settings.host = "localhost";
+                settings.port = server.getPort();
+            }
+
+            new FTPBench(settings).run(clientDirectory);
+
+        } finally {
+            if (server != null) {
+                server.close();
+                deleteTree(serverDirectory);
+            }
+
+            deleteTree(clientDirectory);
+        }
+    }
+
+
+    private void run(Path clientDirectory) throws Exception {
+        Workload workload;
+
+        if (settings.workload.equals("small")) {
+            workload = transferWorkload(settings.files, settings.size < 0 ? DEFAULT_SMALL_FILE_SIZE : settings.size);
+        } else if (settings.workload.equals("large")) {
+            workload = transferWorkload(1, settings.size < 0 ? DEFAULT_LARGE_FILE_SIZE : settings.size);
+        } else if (settings.workload.equals("list")) {
+            workload = listWorkload();
+        } else {
+            throw new IllegalArgumentException("Unknown workload " + settings.workload);
+        }
+
+        int lastDataPort = settings.lastDataPort >= 0
+                ? settings.lastDataPort
+                : settings.firstDataPort + settings.sessions - 1;
+
+        List<FTPClient> sessions = new ArrayList<FTPClient>();
+        ExecutorService executor = Executors.newFixedThreadPool(settings.sessions);
+
+        try {
+            for (int i = 0; i < settings.sessions; ++i) {
+                FTPClient session = new FTPClient(
+                        settings.host, settings.port, settings.firstDataPort, lastDataPort, clientDirectory.toString()
+                );
+
+                session.setDataConnectionMode(settings.mode);
+                session.setListingCache(0, 0);
+
+                boolean success = session.loginWithUsername(settings.user);
+
+                if (success && !session.isLoggedIn()) {
+                    success = session.loginWithPassword(settings.password);
+                }
+
+                if (!success || !session.isLoggedIn()) {
+                    throw new IOException("Cannot log in to " + settings.host + ":" + settings.port);
+                }
+
+                sessions.add(session);
+            }
+
+            System.out.println(String.format(
+                    "Workload '%s' on %s:%d, %d session(s), %s mode",
+                    settings.workload, settings.host, settings.port, settings.sessions, settings.mode
+            ));
+
+            List<Future<?>> done = new ArrayList<Future<?>>();
+            long startTime = System.nanoTime();
+
+            for (int i = 0; i < sessions.size(); ++i) {
+                FTPClient session = sessions.get(i);
+                int index = i;
+
+                done.add(executor.submit(() -> {
+                    workload.run(session, index, clientDirectory);
+                    return null;
+                }));
+            }
+
+            for (Future<?> sessionDone: done) {
+                sessionDone.get();
+            }
+
+            report(System.nanoTime() - startTime);
+
+        } finally {
+            executor.shutdownNow();
+
+            for (FTPClient session: sessions) {
+                session.close();
+            }
+        }
+    }
+
+
+    // Each session works in its own directory on the server: the setup (files to upload, MKD, CWD)
+    // is not measured, the transfers and deletes are
+    private Workload transferWorkload(int files, long size) {
+        return (session, index, clientDirectory) -> {
+            String directory = "bench-" + index;
+            List<String> fileNames = new ArrayList<String>();
+
+            for (int i = 0; i < files; ++i) {
+                String fileName = String.format("s%d-%d.bin", index, i);
+
+                writeRandomFile(clientDirectory.resolve(fileName), size, index * 100000L + i);
+                fileNames.add(fileName);
+            }
+
+            check(session.mkdir(directory));
+            check(session.cwd(directory));
+
+            for (String fileName: fileNames) {
+                measure("upload", () -> check(session.store(fileName, fileName, OverwritePolicy.OVERWRITE)));
+            }
+
+            for (String fileName: fileNames) {
+                measure("download", () -> check(session.retrieve(fileName, fileName, OverwritePolicy.OVERWRITE)));
+            }
+
+            for (String fileName: fileNames) {
+                measure("delete", () -> check(session.delete(fileName)));
+                Files.delete(clientDirectory.resolve(fileName));
+            }
+
+            check(session.cwd(null));
+            check(session.delete(directory));
+        };
+    }
+
+
+    private Workload listWorkload() {
+        return (session, index, clientDirectory) -> {
+            String directory = "bench-" + index;
+
+            // Empty files: only the number of entries matters
+            Path emptyFile = clientDirectory.resolve("empty-" + index);
+            Files.write(emptyFile, new byte[0]);
+
+            check(session.mkdir(directory));
+            check(session.cwd(directory));
+
+            CommandPipeline pipeline = new CommandPipeline(session);
+
+            for (int i = 0; i < settings.files; ++i) {
+                check(session.store(emptyFile.getFileName().toString(), "entry-" + i, OverwritePolicy.OVERWRITE));
+                pipeline.delete("entry-" + i);
+            }
+
+            for (int round = 0; round < settings.rounds; ++round) {
+                measure("list", () -> {
+                    ListResult listing = session.list();
+                    check(listing);
+
+                    bytes.add(listing.getListing().length());
+                });
+            }
+
+            for (CommandResult result: pipeline.execute()) {
+                check(result);
+            }
+
+            check(session.cwd(null));
+            check(session.delete(directory));
+            Files.delete(emptyFile);
+        };
+    }
+
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+
+    private void measure(String name, Operation operation) throws Exception {
+        Histogram histogram;
+
+        synchronized (latencies) {
+            histogram = latencies.computeIfAbsent(name, n -> new Histogram());
+        }
+
+        long startTime = System.nanoTime();
+        operation.run();
+        histogram.record(System.nanoTime() - startTime);
+
+        operations.increment();
+    }
+
+
+    private void check(TransferResult result) throws IOException {
+        if (!result.isSuccessful()) {
+            throw new IOException(result.toString());
+        }
+
+        bytes.add(result.getBytesTransferred());
+    }
+
+    private static void check(CommandResult result) throws IOException {
+        if (!result.isSuccessful()) {
+            throw new IOException(result.getMessage());
+        }
+    }
+
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println(String.format(
+                "%d operation(s) in %.2f s: %.1f ops/s, %.2f MB/s",
+                operations.sum(), seconds, operations.sum() / seconds, bytes.sum() / (1024.0 * 1024) / seconds
+        ));
+
+        System.out.println(String.format(
+                "%-10s %8s %10s %10s %10s %10s %10s",
+                "operation", "count", "mean ms", "median ms", "p90 ms", "p99 ms", "max ms"
+        ));
+
+        for (Map.Entry<String, Histogram> entry: latencies.entrySet()) {
+            Histogram.Snapshot snapshot = entry.getValue().snapshot(NANOS_PER_MILLI);
+
+            System.out.println(String.format(
+                    "%-10s %8d %10.3f %10.3f %10.3f %10.3f %10.3f",
+                    entry.getKey(), snapshot.getCount(), snapshot.getMean(), snapshot.getMedian(),
+                    snapshot.getP90(), snapshot.getP99(), snapshot.getMax()
+            ));
+        }
+
+    }
+
+
+    private static Settings parseArguments(String[] argv) {
+        Settings settings = new Settings();
+
+        for (int i = 0; i < argv.length; ++i) {
+            String option = argv[i];
+
+            if (i + 1 >= argv.length) {
+                throw new IllegalArgumentException("Missing value of " + option);
+            }
+
+            String value = argv[++i];
+
+            if (option.equals("--workload")) {
+                settings.workload = value;
+            } else if (option.equals("--sessions")) {
+                settings.sessions = Integer.parseInt(value);
+            } else if (option.equals("--files")) {
+                settings.files = Integer.parseInt(value);
+            } else if (option.equals("--size")) {
+                settings.size = Long.parseLong(value);
+            } else if (option.equals("--rounds")) {
+                settings.rounds = Integer.parseInt(value);
+            } else if (option.equals("--mode")) {
+                settings.mode = value.equals("passive") ? DataConnectionMode.PASSIVE : DataConnectionMode.ACTIVE;
+            } else if (option.equals("--data-ports")) {
+                String[] ports = value.split("-");
+                settings.firstDataPort = Integer.parseInt(ports[0]);
+                settings.lastDataPort = Integer.parseInt(ports[1]);
+            } else if (option.equals("--server")) {
+                int index = value.lastIndexOf(':');
+                settings.host = value.substring(0, index);
+                settings.port = Integer.parseInt(value.substring(index + 1));
+            } else if (option.equals("--user")) {
+                settings.user = value;
+            } else if (option.equals("--password")) {
+                settings.password = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        if (settings.sessions < 1 || settings.files < 1 || settings.rounds < 1) {
+            throw new IllegalArgumentException("Sessions, files and rounds must be at least 1");
+        }
+
+        return settings;
+    }
+
+
+    private static void writeRandomFile(Path file, long size, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                channel.write(ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written)));
+            }
+        }
+    }
+
+
+    private static void deleteTree(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+}
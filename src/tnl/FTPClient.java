@@ -7,106 +7,31 @@ Email: nlta@connect.ust.hk
 package tnl;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 
 public class FTPClient {
-    private class FTPResponse {
-        public int code;
-        public String message;
-
-
-        public FTPResponse(String response) throws Exception {
-            int firstSpaceIndex = response.indexOf(" ");
-            String codeStr;
-
-            if (firstSpaceIndex == -1) {
-                codeStr = response;
-                message = "";
-            } else {
-                codeStr = response.substring(0, firstSpaceIndex);
-                message = response.substring(firstSpaceIndex + 1);
-            }
-
-            try {
-                code = Integer.parseInt(codeStr);
-            } catch (Exception e) {
-                throw new Exception("Invalid response");
-            }
-
-            if (!FTPResponseCode.isValidCode(code)) {
-                throw new Exception("Invalid response");
-            }
-
-        }
-
-    }
-
-
-    private static class FTPResponseCode {
-        public static final int SIGNAL_DATA_CONNECTION_OPEN = 150;
-
-        public static final int LOGGED_IN = 230;
-        public static final int LOGGED_OUT = 221;
-        public static final int REQUEST_ACTION_DONE = 250;
-        public static final int DATA_TRANSFER_COMPLETED = 226;
-        public static final int DATA_CONNECTION_OPEN_DONE = 200;
-
-        public static final int ENTER_PASS = 331;
-
-        public static final int FORCED_LOGGED_OUT = 421;
-        public static final int DATA_CONNECTION_OPEN_FAILED = 425;
-        public static final int DATA_TRANSFER_ERROR = 426;
-        public static final int REQUEST_FILE_ACTION_FAILED = 450;
-        public static final int REQUEST_ACTION_FAILED = 451;
-
-        public static final int SYNTAX_ERROR = 501;
-
-        private static final List<Integer> RESPONSE_CODES = Arrays.asList(new Integer[]{
-                150,
-                230, 221, 250, 226, 200,
-                331,
-                421, 425, 426, 450, 451,
-                501
-        });
-
-
-        public static boolean isValidCode(int code) {
-            return RESPONSE_CODES.contains(code);
-        }
-
-    }
-
-
-    private static class FTPRequestCode {
-        public static final String USERNAME = "USER";
-        public static final String PASSWORD = "PASS";
-
-        public static final String OPEN_DATA_CONNECTION = "PORT";
-
-        public static final String MAKE_NEW_DIRECTORY = "MKD";
-        public static final String LIST_FILE_DIRECTORY = "LIST";
-        public static final String GOTO_DIRECTORY = "CWD";
-
-        public static final String DELETE = "DELE";
-
-        public static final String DOWNLOAD_FILE = "RETR";
-        public static final String UPLOAD_FILE_NO_OVERWITE = "STOU";
-        public static final String UPLOAD_FILE_OVERWRITE = "STORE";
-
-        public static final String LOGOUT = "QUIT";
-    }
-
-
-    private class ClientCommand {
+    // Console command split into its code and arguments; arguments with spaces are quoted
+    static class ClientCommand {
         public String code;
         public ArrayList<String> arguments;
 
@@ -173,52 +98,212 @@ public class FTPClient {
     private static List<String> CLIENT_COMMAND_CODES = Arrays.asList(new String[]{
             "ls", "cd",
             "mkdir", "rm",
-            "get", "put"
+            "get", "put",
+            "mget", "mput",
+            "pget", "mirror"
+    });
+
+    private static final int DEFAULT_PARALLEL_SESSIONS = 4;
+
+    private static final long CHECKPOINT_INTERVAL = 8L * 1024 * 1024;
+
+    // Transfers from this size on write (or read) the local file on a thread of their own
+    private static final long PIPELINE_MIN_SIZE = 1024L * 1024;
+
+    // Free names tried by OverwritePolicy.RENAME before an upload gives up
+    private static final int MAX_RENAME_ATTEMPTS = 100;
+
+    // FEAT name under which a server advertises both MLST and MLSD
+    private static final String MACHINE_LISTING_FEATURE = "MLST";
+
+    // FEAT name of HASH, followed by the algorithms the server supports: "SHA-1;SHA-256*;MD5", * marking the selected one
+    private static final String HASH_FEATURE = "HASH";
+
+    // MODE S streams the file as it is, MODE Z as a deflate stream
+    private static final String STREAM_MODE = "S";
+    private static final String DEFLATE_MODE = "Z";
+
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    // Files that deflate cannot shrink any further: these are always transferred in MODE S
+    private static final List<String> COMPRESSED_EXTENSIONS = Arrays.asList(new String[]{
+            "gz", "tgz", "bz2", "xz", "zst", "lz4", "zip", "7z", "rar", "jar", "apk",
+            "docx", "xlsx", "pptx", "odt", "ods", "pdf",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "mov", "avi", "webm"
+    });
+
+    // Sends the keepalive NOOPs of every session; a session only holds it for one exchange at a time
+    private static final ScheduledExecutorService KEEPALIVE_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ftp-keepalive");
+        thread.setDaemon(true);
+        return thread;
     });
 
-    private final Charset ENCODING_UTF8 = Charset.forName("UTF-8");
 
-    private final int BUFFER_SIZE = 1024;
+    // Body of an operation run by runWithRetry
+    private interface Operation<T> {
+        T run() throws AutoTerminatedException;
+    }
 
 
     private Scanner scanConsole;
 
     private String host;
     private int port;
-    private int dataPort;
+    private DataListener dataListener;
     private Path clientDirectory;
 
     private String currentServerPath;
 
     private Socket socket;
-    private BufferedReader inputStream;
+    private ControlReader controlReader;
     private PrintWriter outputStream;
 
-    private boolean hasLoggedIn;
+    // Shared with the keepalive timer: held to send a request, to count a reply, or for a whole NOOP exchange
+    private Object controlLock;
+
+    // Requests sent whose final reply has not been read yet
+    private int pendingReplies;
+    private long lastActivityTime;
+
+    private volatile boolean hasLoggedIn;
     private String username;
+    private String password;
+
+    private DataConnectionMode dataConnectionMode;
+    private DataConnectionStrategy dataConnectionStrategy;
+
+    private boolean zeroCopyEnabled;
+    private int chunkSize;
+
+    // The transfers of this session share sessionBandwidthLimiter; each transfer also gets a limiter of its own
+    private BandwidthLimiter sessionBandwidthLimiter;
+    private long transferBytesPerSecond;
+    private long transferBurstBytes;
+
+    private int parallelSessions;
+    private FTPSessionPool sessionPool;
+
+    private TransferJournal transferJournal;
+
+    private ListingCache listingCache;
+
+    // Extensions advertised by the server (FEAT), null until first needed
+    private Map<String, String> features;
+
+    // Digest computed during get/put and compared against the server's, null if transfers are not checked
+    private ChecksumAlgorithm checksumAlgorithm;
+
+    private boolean compressionEnabled;
+    private int compressionLevel;
+
+    // Transfer mode the server is in, and whether it has refused MODE Z
+    private boolean deflateModeSelected;
+    private boolean deflateModeRefused;
+
+    // Algorithm HASH uses on the server, as chosen with OPTS HASH; null until known
+    private String selectedHashAlgorithm;
+
+    private FTPMetrics.CommandTimer commandTimer;
+
+    // Answer of get/put/pget when the target file exists; null asks at the console
+    private OverwritePolicy commandOverwritePolicy;
+
+    // null: a session whose connection is lost stays terminated
+    private RetryPolicy retryPolicy;
+
+    // Logged in once, and not closed since: a lost connection can be replaced
+    private boolean reconnectable;
+
+    // The current attempt failed for a reason that may pass (FTPResponseCode.isTransient, no data connection)
+    private boolean transientFailure;
+
+    private long keepaliveIntervalMillis;
+    private ScheduledFuture<?> keepaliveTask;
 
 
     public FTPClient(String host, int port, int dataPort, String clientDirectory) throws Exception {
+        this(host, port, dataPort, dataPort, clientDirectory);
+    }
+
+
+    // Active-mode transfers take their port from [firstDataPort, lastDataPort].
+    // Clients given the same range share the listener, so each concurrent transfer needs its own port.
+    public FTPClient(String host, int port, int firstDataPort, int lastDataPort, String clientDirectory) throws Exception {
+        this(host, port, DataListener.forRange(firstDataPort, lastDataPort), Paths.get(clientDirectory));
+    }
+
+
+    private FTPClient(String host, int port, DataListener dataListener, Path clientDirectory) throws Exception {
         this.host = host;
         this.port = port;
-        this.clientDirectory = Paths.get(clientDirectory);
+        this.clientDirectory = clientDirectory;
 
-        socket = new Socket(host, port);
+        this.dataListener = dataListener;
 
-        this.dataPort = dataPort;
+        controlLock = new Object();
+        commandTimer = FTPMetrics.shared().newCommandTimer();
 
-        inputStream = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        outputStream = new PrintWriter(socket.getOutputStream(), true);
+        openControlConnection();
 
         hasLoggedIn = false;
         username = null;
+        password = null;
 
         currentServerPath = "";
 
+        setDataConnectionMode(DataConnectionMode.ACTIVE);
+
+        zeroCopyEnabled = true;
+        chunkSize = BufferPool.DEFAULT_CHUNK_SIZE;
+
+        sessionBandwidthLimiter = new BandwidthLimiter(BandwidthLimiter.UNLIMITED, 0);
+        transferBytesPerSecond = BandwidthLimiter.UNLIMITED;
+        transferBurstBytes = 0;
+
+        parallelSessions = DEFAULT_PARALLEL_SESSIONS;
+        sessionPool = null;
+
+        transferJournal = null;
+
+        listingCache = new ListingCache(ListingCache.DEFAULT_MAX_ENTRIES, ListingCache.DEFAULT_TTL_MILLIS);
+
+        features = null;
+
+        checksumAlgorithm = null;
+        selectedHashAlgorithm = null;
+
+        compressionEnabled = false;
+        compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        deflateModeSelected = false;
+        deflateModeRefused = false;
+
+        commandOverwritePolicy = null;
+
+        retryPolicy = null;
+        reconnectable = false;
+        transientFailure = false;
+
+        keepaliveIntervalMillis = 0;
+        keepaliveTask = null;
+
         scanConsole = new Scanner(System.in);
     }
 
 
+    private void openControlConnection() throws IOException {
+        socket = new Socket(host, port);
+
+        controlReader = new ControlReader(socket.getInputStream());
+        outputStream = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+        pendingReplies = 0;
+        commandTimer.clear();
+        lastActivityTime = System.nanoTime();
+    }
+
+
     // TRUE = Command done with execution, FALSE = Command failed
     // Exception: I/O-related
     public boolean loginWithUsername(String username) throws Exception {
@@ -239,7 +324,7 @@ public class FTPClient {
 
         // Logged in without password
         if (ftpResponse.code == FTPResponseCode.LOGGED_IN) {
-            hasLoggedIn = true;
+            loggedIn();
             return true;
         }
 
@@ -249,7 +334,7 @@ public class FTPClient {
         }
 
         // Otherwise, regard as forced logged out, close the socket
-        close();
+        terminate();
         return false;
     }
 
@@ -270,20 +355,36 @@ public class FTPClient {
 
         // Login successfully
         if (ftpResponse.code == FTPResponseCode.LOGGED_IN) {
-            hasLoggedIn = true;
+            // Kept to log in the extra sessions used by parallel transfers, and to reconnect
+            this.password = password;
+
+            loggedIn();
             return true;
         }
 
         // Otherwise, regard as forced logged out, close the socket
-        close();
+        terminate();
         return false;
     }
 
 
+    private void loggedIn() {
+        hasLoggedIn = true;
+        reconnectable = true;
+
+        startKeepalive();
+    }
+
+
     public boolean isLoggedIn() {
         return hasLoggedIn;
     }
 
+    // A session terminated by the server or the network is logged in again by its next operation
+    public boolean isReconnectable() {
+        return retryPolicy != null && reconnectable;
+    }
+
     public String getStatusHeader() {
         return String.format(
                 "%s@%s:%s %s%s",
@@ -293,714 +394,2383 @@ public class FTPClient {
     }
 
 
-    public void close() {
-        try {
-            sendRequest(FTPRequestCode.LOGOUT);
-
-            inputStream.close();
-            outputStream.close();
+    public void setDataConnectionMode(DataConnectionMode mode) {
+        dataConnectionMode = mode;
 
-            socket.close();
-        } catch (Exception e) {
-            // Silently ignore the excception
+        if (mode == DataConnectionMode.PASSIVE) {
+            dataConnectionStrategy = new PassiveDataConnectionStrategy(false);
+        } else if (mode == DataConnectionMode.EXTENDED_PASSIVE) {
+            dataConnectionStrategy = new PassiveDataConnectionStrategy(true);
+        } else {
+            dataConnectionStrategy = new ActiveDataConnectionStrategy(dataListener);
         }
 
-        hasLoggedIn = false;
     }
 
+    // Zero-copy is used by default; disabling it forces the plain stream copy loop
+    public void setZeroCopyEnabled(boolean zeroCopyEnabled) {
+        this.zeroCopyEnabled = zeroCopyEnabled;
+    }
 
-    public void executeCommand(String command)
-            throws InvalidCommandException, AutoTerminatedException {
-        ClientCommand clientCommand;
-
-        try {
-            clientCommand = new ClientCommand(command);
-        } catch (InvalidCommandException e) {
-            throw e;
-        }
-
-        if (clientCommand.code.equals("get")) {
-            downloadFile(clientCommand.arguments);
 
-        } else if (clientCommand.code.equals("put")) {
-            uploadFile(clientCommand.arguments);
+    // Size of the buffers leased from the shared BufferPool (64 KB - 4 MB)
+    public void setChunkSize(int chunkSize) {
+        BufferPool.checkChunkSize(chunkSize);
 
-        } else if (clientCommand.code.equals("rm")) {
-            deletePath(clientCommand.arguments);
+        this.chunkSize = chunkSize;
+    }
 
-        } else if (clientCommand.code.equals("mkdir")) {
-            createNewDirectory(clientCommand.arguments);
 
-        } else if (clientCommand.code.equals("cd")) {
-            changeCurrentDirectoryOnServer(clientCommand.arguments);
+    // Limit of all the transfers of this session together; applies to running transfers as well.
+    // Every session also draws from BandwidthLimiter.global(), the limit of the whole process.
+    public void setSessionBandwidthLimit(long bytesPerSecond, long burstBytes) {
+        sessionBandwidthLimiter.setRate(bytesPerSecond, burstBytes);
+    }
 
-        } else if (clientCommand.code.equals("ls")) {
-            listContentInDirectory(clientCommand.arguments);
 
+    // Limit of each transfer on its own, from the next transfer on
+    public void setTransferBandwidthLimit(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond < 0 || burstBytes < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth limit or burst size");
         }
 
+        transferBytesPerSecond = bytesPerSecond;
+        transferBurstBytes = burstBytes;
     }
 
-    private void sendRequest(String request, String... arguments) throws AutoTerminatedException {
-        String finalRequest = request;
 
-        for (String arg: arguments) {
-            finalRequest += " ";
+    // get/put compress the data connection (MODE Z) when the server supports it,
+    // except for files that are already compressed (by extension)
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
 
-            if (arg.indexOf(' ') == -1) {
-                finalRequest += arg;
-            } else {
-                finalRequest += ('"' + arg + '"');
-            }
 
+    // Deflate level of uploads, from 1 (fastest) to 9 (smallest); the server is asked to use it for downloads
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format(
+                    "Compression level must be between %d and %d", Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION
+            ));
         }
 
-        outputStream.println(finalRequest);
+        this.compressionLevel = compressionLevel;
+    }
 
-        if (outputStream.checkError()) {
-            throw new AutoTerminatedException("Error sending request to server");
-        }
 
+    // What get, put, pget, mget and mput do when their target file exists, instead of asking at the console.
+    // null (the default) asks, or skips for mget / mput; segmented downloads cannot rename, so RENAME fails them like FAIL.
+    public void setCommandOverwritePolicy(OverwritePolicy commandOverwritePolicy) {
+        this.commandOverwritePolicy = commandOverwritePolicy;
     }
 
-    private FTPResponse getResponse() throws AutoTerminatedException {
-        String response;
-        FTPResponse ftpResponse;
 
-        try {
-            response = inputStream.readLine();
-        } catch (Exception e) {
-            close();
-            throw new AutoTerminatedException("Error reading response from server");
+    // Operations of a session whose connection is lost reconnect, log in again, go back to the current
+    // directory and run again; so do transfers that failed for a reason that may pass (FTPResponseCode.isTransient).
+    // Uploads that may not overwrite are only run again if they can be resumed: a new attempt would find the
+    // partial file of the failed one. null (the default) terminates the session as soon as its connection is lost.
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+
+    // While the session is idle, send a NOOP every intervalMillis so that neither the server nor a firewall
+    // in between drops the control connection. 0 (the default) sends none.
+    public void setKeepaliveInterval(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid keepalive interval");
         }
 
-        try {
-            ftpResponse = new FTPResponse(response);
-        } catch (Exception e) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
+        stopKeepalive();
+        keepaliveIntervalMillis = intervalMillis;
+
+        if (hasLoggedIn) {
+            startKeepalive();
         }
 
-        return ftpResponse;
     }
 
-    private Socket establishDataConnection() throws Exception {
-        ServerSocket serverDataSocket = new ServerSocket(dataPort);
 
-        // Wait long enough to prevent immature timeout
-        serverDataSocket.setSoTimeout(20000);
+    // Resumable transfers: a failed download keeps its partial file and a failed upload keeps the
+    // file on the server; a checkpoint journal in the client directory lets a rerun continue them
+    public void setResumeEnabled(boolean resumeEnabled) {
+        transferJournal = resumeEnabled ? new TransferJournal(clientDirectory) : null;
+    }
 
-        Socket dataSocket = serverDataSocket.accept();
 
-        // Close the serverSocket. This will not affect the socket created through accept()
-        try {
-            serverDataSocket.close();
-        } catch (Exception e) {
-            // Silently ignore the exception
+    // Number of sessions used by mget/mput
+    public void setParallelSessions(int parallelSessions) {
+        if (parallelSessions < 1) {
+            throw new IllegalArgumentException("At least one session is needed");
         }
 
-        return dataSocket;
+        this.parallelSessions = parallelSessions;
     }
 
-    private void downloadFile(ArrayList<String> commandArguments)
-            throws InvalidCommandException, AutoTerminatedException {
-        if (commandArguments.size() < 1 || commandArguments.size() > 2) {
-            throw new InvalidCommandException();
-        }
 
-        String fileNameOnServer = commandArguments.get(0);
-
-        String fileNameOnLocal = fileNameOnServer;
-        if (commandArguments.size() == 2) {
-            fileNameOnLocal = commandArguments.get(1);
-        }
+    // Listings are cached for ttlMillis, up to maxEntries directories; a maxEntries of 0 disables the cache
+    public void setListingCache(int maxEntries, long ttlMillis) {
+        listingCache = (maxEntries == 0) ? null : new ListingCache(maxEntries, ttlMillis);
+    }
 
-        File fileRetrieved = clientDirectory.resolve(fileNameOnLocal).toFile();
 
-        // See if user wants to overwite already-existing ile.
-        if (fileRetrieved.exists()) {
-            System.out.print(String.format(
-                    "File '%s' is already existed in your computer. Do you want to overwrite it (Y/N)? ",
-                    fileNameOnLocal
-            ));
+    // null if listings are not cached
+    public ListingCache getListingCache() {
+        return listingCache;
+    }
 
-            String overwrite = scanConsole.nextLine().trim().toLowerCase();
 
-            if (overwrite.equals("n")) {
-                return;
+    // Compute a digest of every downloaded and uploaded file while it is transferred, and compare it
+    // with the server's when the server can compute one. A file whose digest does not match is deleted
+    // and the transfer fails. null disables checking.
+    // Segmented downloads (pget) are not checked.
+    public void setChecksumAlgorithm(ChecksumAlgorithm checksumAlgorithm) {
+        if (checksumAlgorithm != null) {
+            try {
+                checksumAlgorithm.newDigester();
+            } catch (IllegalStateException e) {
+                throw new IllegalArgumentException(e.getMessage());
             }
-
         }
 
-        FTPResponse ftpResponse;
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
 
-        // Ask Server to open port
-        sendRequest(
-                FTPRequestCode.OPEN_DATA_CONNECTION,
-                socket.getInetAddress().getHostAddress(),
-                String.valueOf(dataPort)
+    // Open another logged-in session to the same server, with the same settings and working directory
+    FTPClient newSession() throws Exception {
+        FTPClient session = new FTPClient(host, port, dataListener, clientDirectory);
+
+        session.setDataConnectionMode(dataConnectionMode);
+        session.zeroCopyEnabled = zeroCopyEnabled;
+        session.chunkSize = chunkSize;
+        session.sessionBandwidthLimiter.setRate(
+                sessionBandwidthLimiter.getBytesPerSecond(), sessionBandwidthLimiter.getBurstBytes()
         );
+        session.transferBytesPerSecond = transferBytesPerSecond;
+        session.transferBurstBytes = transferBurstBytes;
+        session.transferJournal = transferJournal;
+        session.listingCache = listingCache;
+        session.features = features;
+        session.checksumAlgorithm = checksumAlgorithm;
+        session.compressionEnabled = compressionEnabled;
+        session.compressionLevel = compressionLevel;
+        session.commandOverwritePolicy = commandOverwritePolicy;
+        // Pooled sessions send no keepalives: an idle one that has been dropped is reconnected when borrowed again
+        session.retryPolicy = retryPolicy;
 
-        ftpResponse = getResponse();
+        boolean success = session.loginWithUsername(username);
 
-        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
+        if (success && !session.isLoggedIn() && password != null) {
+            success = session.loginWithPassword(password);
         }
 
-        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
+        if (!success || !session.isLoggedIn()) {
+            session.close();
+            throw new AutoTerminatedException("Cannot log in another session");
         }
 
-        // Send real File-Downloading request
-        sendRequest(FTPRequestCode.DOWNLOAD_FILE, fileNameOnServer);
+        if (!currentServerPath.equals("")) {
+            session.sendRequest(FTPRequestCode.GOTO_DIRECTORY, currentServerPath);
 
-        ftpResponse = getResponse();
+            FTPResponse ftpResponse = session.getResponse();
 
-        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
+            if (ftpResponse.code != FTPResponseCode.REQUEST_ACTION_DONE) {
+                session.close();
+                throw new AutoTerminatedException("Cannot change directory of another session");
+            }
+
+            session.currentServerPath = ftpResponse.message.trim();
         }
 
-        // File not exist on server. Terminated
-        if (ftpResponse.code == FTPResponseCode.REQUEST_FILE_ACTION_FAILED) {
-            System.out.println(String.format(
-                    "File '%s' does not exist on server!",
-                    fileNameOnServer
-            ));
+        return session;
+    }
 
-            return;
-        }
 
-        if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
-        }
+    Path getClientDirectory() {
+        return clientDirectory;
+    }
 
-        FileOutputStream fileRetrievedOutStream;
 
-        try {
-            fileRetrievedOutStream = new FileOutputStream(fileRetrieved);
-        } catch (Exception e) {
-            System.out.println("Error creating file in your computer!");
-            return;
-        }
+    String getCurrentServerPath() {
+        return currentServerPath;
+    }
 
-        Socket dataSocket = null;
-        DataInputStream dataSocketInpStream = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
 
-        try {
-            dataSocket = establishDataConnection();
-            dataSocketInpStream = new DataInputStream(dataSocket.getInputStream());
-        } catch (Exception e) {
-            try {
-                // Close data socket
-                dataSocketInpStream.close();
-                dataSocket.close();
+    int getParallelSessions() {
+        return parallelSessions;
+    }
 
-                fileRetrievedOutStream.close();
-            } catch (Exception se) {
-                // Silently ignore the exception
-            }
 
-            System.out.println("Error establishing data connection!");
-            return;
-        }
+    InetAddress getServerAddress() {
+        return socket.getInetAddress();
+    }
 
-        int byteReceived;
-        int errorOccured = 0;
 
-        while (true) {
-            try {
-                byteReceived = dataSocketInpStream.read(buffer, 0, BUFFER_SIZE);
-            } catch (Exception e) {
-                errorOccured = 2;
-                break;
-            }
+    // Log out for good: a closed session is not reconnected
+    public void close() {
+        reconnectable = false;
 
-            if (byteReceived == -1) {
-                break;
-            }
+        terminate();
+    }
 
-            try {
-                fileRetrievedOutStream.write(buffer, 0, byteReceived);
-                fileRetrievedOutStream.flush();
-            } catch (Exception e) {
-                errorOccured = 1;
-                break;
-            }
+    // The session ended on an error, or is about to be replaced by a new connection
+    void terminate() {
+        stopKeepalive();
 
+        if (sessionPool != null) {
+            sessionPool.close();
+            sessionPool = null;
         }
 
         try {
-            fileRetrievedOutStream.close();
-
-            dataSocketInpStream.close();
-            dataSocket.close();
+            sendRequest(FTPRequestCode.LOGOUT);
         } catch (Exception e) {
-            // Silently ignore this error
+            // Silently ignore the exception: the connection may already be gone
         }
 
-        if (errorOccured == 1) {
-            System.out.println("Error saving downloaded file to computer!");
-        } else if (errorOccured == 2) {
-            System.out.println("Error retrieving file data from server!");
+        try {
+            controlReader.close();
+            outputStream.close();
+
+            socket.close();
+        } catch (Exception e) {
+            // Silently ignore the excception
         }
 
-        ftpResponse = getResponse();
+        hasLoggedIn = false;
+    }
 
-        // File download succesfully, without any error
-        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED && errorOccured == 0) {
-            System.out.println(String.format("File '%s' has been downloaded successfully", commandArguments.get(0)));
-            return;
-        }
 
-        // Otherwise, downloaded file has error and need deleting
+    // Replace the lost control connection: log in again and go back to the current directory.
+    // Settings carry over; what was negotiated on the old connection (MODE Z, OPTS HASH) starts over.
+    // Exception: the server cannot be reached, or refuses the login or the directory
+    private void reconnect() throws AutoTerminatedException {
+        terminate();
+
         try {
-            fileRetrieved.delete();
+            openControlConnection();
         } catch (Exception e) {
-            // Silently ignore the exception
+            throw new AutoTerminatedException("Cannot connect to server");
         }
 
-        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_ERROR) {
-            System.out.println("Error retrieving file data from server!");
-            return;
-        } else if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
-        } else {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
-        }
+        deflateModeSelected = false;
+        selectedHashAlgorithm = null;
 
-    }
+        boolean success;
 
-    private void uploadFile(ArrayList<String> commandArguments)
-            throws InvalidCommandException, AutoTerminatedException {
-        if (commandArguments.size() < 1 || commandArguments.size() > 2) {
+        try {
+            success = loginWithUsername(username);
+
+            if (success && !hasLoggedIn && password != null) {
+                success = loginWithPassword(password);
+            }
+
+        } catch (Exception e) {
+            success = false;
+        }
+
+        if (!success || !hasLoggedIn) {
+            terminate();
+            throw new AutoTerminatedException("Cannot log in again");
+        }
+
+        if (!currentServerPath.equals("")) {
+            sendRequest(FTPRequestCode.GOTO_DIRECTORY, currentServerPath);
+
+            FTPResponse ftpResponse = getResponse();
+
+            if (ftpResponse.code != FTPResponseCode.REQUEST_ACTION_DONE) {
+                terminate();
+                throw new AutoTerminatedException(String.format("Cannot go back to directory '%s'", currentServerPath));
+            }
+
+            currentServerPath = ftpResponse.message.trim();
+        }
+
+        FTPMetrics.shared().recordReconnect();
+    }
+
+
+    // Run the operation, reconnecting first if the session has been terminated. Without a retry policy it runs once.
+    // Otherwise it runs again, after a growing delay, while it fails for a reason that may pass or loses the
+    // connection, up to the attempts of the policy; repeatable is FALSE for an operation that must not run twice.
+    // Exception: the session has been terminated, and could not be restored
+    private <T> T runWithRetry(Operation<T> operation, boolean repeatable) throws AutoTerminatedException {
+        if (retryPolicy == null) {
+            return operation.run();
+        }
+
+        int maxAttempts = repeatable ? retryPolicy.getMaxAttempts() : 1;
+
+        T result;
+        AutoTerminatedException terminated;
+
+        for (int attempt = 1; ; ++attempt) {
+            result = null;
+            terminated = null;
+
+            transientFailure = false;
+
+            try {
+                if (!hasLoggedIn && reconnectable) {
+                    reconnect();
+                }
+
+                result = operation.run();
+            } catch (AutoTerminatedException e) {
+                // The connection may still look open while the server is no longer answering it
+                terminate();
+                terminated = e;
+            }
+
+            if (terminated == null && !transientFailure) {
+                return result;
+            }
+
+            if (attempt >= maxAttempts || (terminated != null && !reconnectable)) {
+                break;
+            }
+
+            try {
+                Thread.sleep(retryPolicy.delayMillis(attempt));
+            } catch (InterruptedException e) {
+                // The last attempt stands
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            FTPMetrics.shared().recordRetry();
+        }
+
+        if (terminated != null) {
+            throw terminated;
+        }
+
+        return result;
+    }
+
+
+    // TRUE = Command done with execution, FALSE = Command failed
+    public boolean executeCommand(String command)
+            throws InvalidCommandException, AutoTerminatedException {
+        ClientCommand clientCommand;
+
+        try {
+            clientCommand = new ClientCommand(command);
+        } catch (InvalidCommandException e) {
+            throw e;
+        }
+
+        restoreSession();
+
+        if (clientCommand.code.equals("get")) {
+            return downloadFile(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("put")) {
+            return uploadFile(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("mget")) {
+            return transferInParallel(clientCommand.arguments, true);
+
+        } else if (clientCommand.code.equals("mput")) {
+            return transferInParallel(clientCommand.arguments, false);
+
+        } else if (clientCommand.code.equals("pget")) {
+            return downloadFileInSegments(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("mirror")) {
+            return mirrorDirectory(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("rm")) {
+            return deletePath(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("mkdir")) {
+            return createNewDirectory(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("cd")) {
+            return changeCurrentDirectoryOnServer(clientCommand.arguments);
+
+        } else if (clientCommand.code.equals("ls")) {
+            return listContentInDirectory(clientCommand.arguments);
+
+        }
+
+        return true;
+    }
+
+    // Download a file from the current directory on the server into the client directory.
+    // overwritePolicy decides what happens when the local file already exists.
+    // Exception: the session has been terminated
+    public TransferResult retrieve(String fileNameOnServer, String fileNameOnLocal, OverwritePolicy overwritePolicy)
+            throws AutoTerminatedException {
+        if (overwritePolicy == null) {
+            throw new IllegalArgumentException("An overwrite policy is needed");
+        }
+
+        return retrieveFile(fileNameOnServer, fileNameOnLocal, overwritePolicy);
+    }
+
+    // Upload a file of the client directory into the current directory on the server.
+    // overwritePolicy decides what happens when the file already exists on the server.
+    // Exception: the session has been terminated
+    public TransferResult store(String fileNameOnLocal, String fileNameOnServer, OverwritePolicy overwritePolicy)
+            throws AutoTerminatedException {
+        if (overwritePolicy == null) {
+            throw new IllegalArgumentException("An overwrite policy is needed");
+        }
+
+        return storeFile(fileNameOnLocal, fileNameOnServer, overwritePolicy);
+    }
+
+    // A delete run again after a lost connection fails if the lost attempt had already reached the server
+    // Exception: the session has been terminated
+    public CommandResult delete(String path) throws AutoTerminatedException {
+        CommandResult result = runWithRetry(() -> {
+            sendRequest(FTPRequestCode.DELETE, path);
+
+            return commandResult(getResponse());
+        }, true);
+
+        commandDone(FTPRequestCode.DELETE, path, result);
+
+        return result;
+    }
+
+    // Exception: the session has been terminated
+    public CommandResult mkdir(String path) throws AutoTerminatedException {
+        CommandResult result = runWithRetry(() -> {
+            sendRequest(FTPRequestCode.MAKE_NEW_DIRECTORY, path);
+
+            return commandResult(getResponse());
+        }, true);
+
+        commandDone(FTPRequestCode.MAKE_NEW_DIRECTORY, path, result);
+
+        return result;
+    }
+
+    // A null path goes back to the root directory of the user
+    // Exception: the session has been terminated
+    public CommandResult cwd(String path) throws AutoTerminatedException {
+        CommandResult result = runWithRetry(() -> {
+            if (path == null) {
+                sendRequest(FTPRequestCode.GOTO_DIRECTORY);
+            } else {
+                sendRequest(FTPRequestCode.GOTO_DIRECTORY, path);
+            }
+
+            return commandResult(getResponse());
+        }, true);
+
+        commandDone(FTPRequestCode.GOTO_DIRECTORY, path, result);
+
+        return result;
+    }
+
+    // Reconnect a terminated session before a command that is not run through runWithRetry as a whole
+    private void restoreSession() throws AutoTerminatedException {
+        runWithRetry(() -> null, true);
+    }
+
+    // Bookkeeping after the reply to a DELE / MKD / CWD: current directory and cached listings
+    void commandDone(String request, String path, CommandResult result) {
+        if (request.equals(FTPRequestCode.GOTO_DIRECTORY)) {
+            if (result.isSuccessful()) {
+                // The server replies to a successful CWD with the new current directory
+                currentServerPath = result.getMessage().trim();
+
+                // Pooled sessions are still in the previous directory
+                if (sessionPool != null) {
+                    sessionPool.close();
+                    sessionPool = null;
+                }
+
+            } else if (listingCache != null) {
+                // The cached listing may still show a directory that is gone
+                listingCache.invalidate(currentServerPath);
+            }
+
+            return;
+        }
+
+        if (result.isSuccessful()) {
+            invalidateListing(path);
+        }
+
+    }
+
+    // The directory holding nameOnServer has changed, and so has nameOnServer itself if it is a directory
+    private void invalidateListing(String nameOnServer) {
+        if (listingCache == null) {
+            return;
+        }
+
+        // Paths are only resolved by the server: drop everything rather than guess which directory is meant
+        if (nameOnServer.indexOf('/') != -1 || nameOnServer.indexOf('\\') != -1
+                || nameOnServer.equals(".") || nameOnServer.equals("..")) {
+            listingCache.invalidateAll();
+            return;
+        }
+
+        listingCache.invalidate(currentServerPath);
+        listingCache.invalidateTree(getServerPath(nameOnServer));
+    }
+
+    // List the current directory on the server, in the server's own LIST format
+    // Exception: the session has been terminated
+    public ListResult list() throws AutoTerminatedException {
+        return runWithRetry(() -> {
+            List<String> lines = new ArrayList<String>();
+
+            RemoteListing listing = openListing(false);
+            listing.setLineConsumer(lines::add);
+
+            try {
+                while (listing.hasNext()) {
+                    listing.next();
+                }
+            } finally {
+                listing.close();
+            }
+
+            CommandResult result = listing.getResult();
+
+            return new ListResult(
+                    result.isSuccessful(), result.getMessage(),
+                    result.isSuccessful() ? String.join("\n", lines) : ""
+            );
+        }, true);
+    }
+
+    // List the current directory on the server entry by entry, as the data connection delivers them.
+    // MLSD is used when the server advertises it, for exact sizes, times and types; LIST otherwise.
+    // The listing must be closed before anything else is done with this client.
+    // Exception: the session has been terminated
+    public RemoteListing listEntries() throws AutoTerminatedException {
+        return runWithRetry(() -> openListing(getFeature(MACHINE_LISTING_FEATURE) != null), true);
+    }
+
+    // Metadata of one file or directory on the server, or null if it does not exist.
+    // MLST gives everything in one round trip; without it, only the size of a file is known (SIZE).
+    // Exception: the session has been terminated
+    public RemoteEntry stat(String nameOnServer) throws AutoTerminatedException {
+        return runWithRetry(() -> statOnServer(nameOnServer), true);
+    }
+
+    private RemoteEntry statOnServer(String nameOnServer) throws AutoTerminatedException {
+        if (getFeature(MACHINE_LISTING_FEATURE) != null) {
+            sendRequest(FTPRequestCode.MACHINE_LIST_FILE, nameOnServer);
+
+            List<String> factLines = new ArrayList<String>();
+            FTPResponse ftpResponse = getMultilineResponse(factLines);
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+            if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_DONE) {
+                for (String factLine: factLines) {
+                    // Each fact line starts with a single space
+                    RemoteEntry entry = ListingParser.parseMachineLine(factLine.startsWith(" ") ? factLine.substring(1) : factLine);
+
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+            }
+
+            if (!FTPResponseCode.isNotSupported(ftpResponse.code)) {
+                return null;
+            }
+        }
+
+        long size = getRemoteFileSize(nameOnServer);
+
+        if (size < 0) {
+            return null;
+        }
+
+        return new RemoteEntry(nameOnServer, RemoteEntry.Type.FILE, size, null, nameOnServer);
+    }
+
+    private RemoteListing openListing(boolean machineReadable) throws AutoTerminatedException {
+        if (listingCache != null) {
+            ListResult cachedListing = listingCache.get(currentServerPath, machineReadable);
+
+            if (cachedListing != null) {
+                return new RemoteListing(cachedListing, cachedListing.getLines(), machineReadable);
+            }
+        }
+
+        FTPResponse ftpResponse = null;
+
+        selectStreamMode();
+
+        DataConnectionStrategy.DataConnection dataConnection = openDataConnection();
+
+        if (dataConnection == null) {
+            return failedListing("Error establishing data connection!");
+        }
+
+        if (machineReadable) {
+            sendRequest(FTPRequestCode.MACHINE_LIST_DIRECTORY);
+
+            ftpResponse = getResponse();
+
+            // Advertised but refused: the data connection is still open for a LIST
+            if (FTPResponseCode.isNotSupported(ftpResponse.code)) {
+                machineReadable = false;
+            }
+
+        }
+
+        if (!machineReadable) {
+            // Send real request
+            sendRequest(FTPRequestCode.LIST_FILE_DIRECTORY);
+
+            ftpResponse = getResponse();
+        }
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        // Current directory not exist on server anymore. Terminated
+        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
+            dataConnection.cancel();
+
+            if (listingCache != null) {
+                listingCache.invalidateTree(currentServerPath);
+            }
+
+            return failedListing("Current directory does not exist on server anymore!");
+        }
+
+        if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+            terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        Socket dataSocket = null;
+
+        try {
+            dataSocket = dataConnection.accept();
+
+            return new RemoteListing(this, dataSocket, machineReadable, listingCache, currentServerPath);
+        } catch (Exception e) {
+            if (dataSocket != null) {
+                try {
+                    dataSocket.close();
+                } catch (Exception se) {
+                    // Silently ignore the exception
+                }
+            }
+
+            return failedListing("Error establishing data connection!");
+        }
+
+    }
+
+    private static RemoteListing failedListing(String message) {
+        return new RemoteListing(new CommandResult(false, message), new ArrayList<String>(), false);
+    }
+
+    // Parameters of an extension advertised in answer to FEAT ("" if it has none), or null if it is not advertised.
+    // FEAT is only sent once per session.
+    // Exception: the session has been terminated
+    String getFeature(String feature) throws AutoTerminatedException {
+        if (features == null) {
+            features = requestFeatures();
+        }
+
+        return features.get(feature);
+    }
+
+    private Map<String, String> requestFeatures() throws AutoTerminatedException {
+        Map<String, String> advertised = new HashMap<String, String>();
+
+        sendRequest(FTPRequestCode.FEATURES);
+
+        List<String> featureLines = new ArrayList<String>();
+        FTPResponse ftpResponse = getMultilineResponse(featureLines);
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        // A server without FEAT has no extensions
+        if (ftpResponse.code != FTPResponseCode.SYSTEM_STATUS) {
+            return advertised;
+        }
+
+        // " MLST size*;modify*;type*;": one extension per line, its parameters after the name
+        for (String featureLine: featureLines) {
+            featureLine = featureLine.trim();
+
+            if (featureLine.isEmpty()) {
+                continue;
+            }
+
+            int index = featureLine.indexOf(' ');
+
+            if (index == -1) {
+                advertised.put(featureLine.toUpperCase(), "");
+            } else {
+                advertised.put(featureLine.substring(0, index).toUpperCase(), featureLine.substring(index + 1).trim());
+            }
+
+        }
+
+        return advertised;
+    }
+
+    // Reply of a command that is answered with 250 on success and 451 on failure
+    CommandResult commandResult(FTPResponse ftpResponse) throws AutoTerminatedException {
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_DONE) {
+            return new CommandResult(true, ftpResponse.message);
+        }
+
+        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
+            return new CommandResult(false, ftpResponse.message + "!");
+        }
+
+        // Invalid response
+        terminate();
+        throw new AutoTerminatedException("Invalid response from server");
+    }
+
+    void sendRequest(String request, String... arguments) throws AutoTerminatedException {
+        synchronized (controlLock) {
+            outputStream.println(formatRequest(request, arguments));
+
+            if (outputStream.checkError()) {
+                throw new AutoTerminatedException("Error sending request to server");
+            }
+
+            requestSent(request);
+        }
+
+    }
+
+    // Write a request without sending it yet: queued requests go out together with flushRequests()
+    void queueRequest(String request, String... arguments) {
+        synchronized (controlLock) {
+            outputStream.print(formatRequest(request, arguments) + System.lineSeparator());
+
+            requestSent(request);
+        }
+
+    }
+
+    private void requestSent(String request) {
+        ++pendingReplies;
+        lastActivityTime = System.nanoTime();
+
+        commandTimer.sent(request);
+    }
+
+    void flushRequests() throws AutoTerminatedException {
+        // checkError() flushes the stream
+        if (outputStream.checkError()) {
+            throw new AutoTerminatedException("Error sending request to server");
+        }
+
+    }
+
+    static String formatRequest(String request, String... arguments) {
+        String finalRequest = request;
+
+        for (String arg: arguments) {
+            finalRequest += " ";
+
+            if (arg.indexOf(' ') == -1) {
+                finalRequest += arg;
+            } else {
+                finalRequest += ('"' + arg + '"');
+            }
+
+        }
+
+        return finalRequest;
+    }
+
+    FTPResponse getResponse() throws AutoTerminatedException {
+        return readResponse(null);
+    }
+
+    // Reply that may span several lines: "211-First line", the lines in between, then "211 Last line".
+    // The lines in between are added to innerLines; the last line is the response.
+    FTPResponse getMultilineResponse(List<String> innerLines) throws AutoTerminatedException {
+        return readResponse(innerLines);
+    }
+
+    private FTPResponse readResponse(List<String> innerLines) throws AutoTerminatedException {
+        FTPResponse ftpResponse;
+
+        try {
+            ftpResponse = controlReader.readResponse(innerLines);
+        } catch (ProtocolException e) {
+            ftpResponse = null;
+        } catch (Exception e) {
+            terminate();
+            throw new AutoTerminatedException("Error reading response from server");
+        }
+
+        if (ftpResponse == null) {
+            terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        synchronized (controlLock) {
+            // A preliminary reply (150) is followed by the final one
+            if (ftpResponse.code >= 200 && pendingReplies > 0) {
+                --pendingReplies;
+            }
+
+            lastActivityTime = System.nanoTime();
+        }
+
+        if (FTPResponseCode.isTransient(ftpResponse.code)) {
+            transientFailure = true;
+        }
+
+        commandTimer.replied(ftpResponse.code);
+
+        return ftpResponse;
+    }
+
+
+    private void startKeepalive() {
+        synchronized (controlLock) {
+            if (keepaliveIntervalMillis == 0 || keepaliveTask != null) {
+                return;
+            }
+
+            // Checked twice an interval: a NOOP goes out at most one and a half intervals after the last exchange
+            long period = Math.max(1, keepaliveIntervalMillis / 2);
+
+            keepaliveTask = KEEPALIVE_TIMER.scheduleWithFixedDelay(this::keepAlive, period, period, TimeUnit.MILLISECONDS);
+        }
+
+    }
+
+    private void stopKeepalive() {
+        synchronized (controlLock) {
+            if (keepaliveTask != null) {
+                keepaliveTask.cancel(false);
+                keepaliveTask = null;
+            }
+
+        }
+
+    }
+
+    // On the keepalive timer. Nothing is sent while a reply is awaited: a transfer in progress or an open
+    // listing are activity enough, and a NOOP would get its reply mixed up with theirs.
+    private void keepAlive() {
+        synchronized (controlLock) {
+            if (!hasLoggedIn || pendingReplies > 0
+                    || System.nanoTime() - lastActivityTime < keepaliveIntervalMillis * 1000000) {
+                return;
+            }
+
+            try {
+                sendRequest(FTPRequestCode.KEEP_ALIVE);
+
+                // Any reply will do, except the server logging the session out
+                if (getResponse().code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                    terminate();
+                }
+
+            } catch (AutoTerminatedException e) {
+                // The next operation reconnects, or fails as with any lost connection
+                terminate();
+            }
+
+        }
+
+    }
+
+    private boolean downloadFile(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() < 1 || commandArguments.size() > 2) {
+            throw new InvalidCommandException();
+        }
+
+        String fileNameOnServer = commandArguments.get(0);
+
+        String fileNameOnLocal = fileNameOnServer;
+        if (commandArguments.size() == 2) {
+            fileNameOnLocal = commandArguments.get(1);
+        }
+
+        TransferResult result = retrieveFile(fileNameOnServer, fileNameOnLocal, commandOverwritePolicy);
+
+        if (result.getStatus() != TransferResult.Status.SKIPPED) {
+            System.out.println(result.getMessage());
+        }
+
+        return result.getStatus() != TransferResult.Status.FAILED;
+    }
+
+    private boolean uploadFile(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() < 1 || commandArguments.size() > 2) {
+            throw new InvalidCommandException();
+        }
+
+        String fileNameOnLocal = commandArguments.get(0);
+
+        String fileNameOnServer = fileNameOnLocal;
+        if (commandArguments.size() == 2) {
+            fileNameOnServer = commandArguments.get(1);
+        }
+
+        TransferResult result = storeFile(fileNameOnLocal, fileNameOnServer, commandOverwritePolicy);
+
+        if (result.getStatus() != TransferResult.Status.SKIPPED) {
+            System.out.println(result.getMessage());
+        }
+
+        return result.getStatus() != TransferResult.Status.FAILED;
+    }
+
+    private boolean downloadFileInSegments(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() < 2 || commandArguments.size() > 3) {
+            throw new InvalidCommandException();
+        }
+
+        String fileNameOnServer = commandArguments.get(0);
+
+        int segments;
+        try {
+            segments = Integer.parseInt(commandArguments.get(1));
+        } catch (NumberFormatException e) {
+            throw new InvalidCommandException();
+        }
+
+        if (segments < 1) {
+            throw new InvalidCommandException();
+        }
+
+        String fileNameOnLocal = fileNameOnServer;
+        if (commandArguments.size() == 3) {
+            fileNameOnLocal = commandArguments.get(2);
+        }
+
+        if (clientDirectory.resolve(fileNameOnLocal).toFile().exists()) {
+            OverwritePolicy overwritePolicy = commandOverwritePolicy;
+
+            if (overwritePolicy == null) {
+                overwritePolicy = confirmLocalOverwrite(fileNameOnLocal) ? OverwritePolicy.OVERWRITE : OverwritePolicy.SKIP;
+            }
+
+            if (overwritePolicy == OverwritePolicy.SKIP) {
+                return true;
+            }
+
+            // Segments are written in place: there is no free name to download to
+            if (overwritePolicy != OverwritePolicy.OVERWRITE) {
+                System.out.println(String.format("File '%s' already exists!", fileNameOnLocal));
+                return false;
+            }
+
+        }
+
+        try {
+            TransferResult result = new SegmentedDownload(this).retrieve(fileNameOnServer, fileNameOnLocal, segments);
+
+            System.out.println(result.getMessage());
+
+            return result.isSuccessful();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Transfer interrupted!");
+
+            return false;
+        }
+
+    }
+
+    // mirror <push|pull> (--delete) (--dry-run)
+    private boolean mirrorDirectory(ArrayList<String> commandArguments) throws InvalidCommandException {
+        if (commandArguments.size() == 0) {
+            throw new InvalidCommandException();
+        }
+
+        Mirror.Direction direction;
+
+        if (commandArguments.get(0).equalsIgnoreCase("push")) {
+            direction = Mirror.Direction.PUSH;
+        } else if (commandArguments.get(0).equalsIgnoreCase("pull")) {
+            direction = Mirror.Direction.PULL;
+        } else {
+            throw new InvalidCommandException();
+        }
+
+        boolean deleteExtraneous = false;
+        boolean dryRun = false;
+
+        for (String option: commandArguments.subList(1, commandArguments.size())) {
+            if (option.equals("--delete")) {
+                deleteExtraneous = true;
+            } else if (option.equals("--dry-run")) {
+                dryRun = true;
+            } else {
+                throw new InvalidCommandException();
+            }
+        }
+
+        Mirror mirror = new Mirror(this, direction);
+        mirror.setDeleteExtraneous(deleteExtraneous);
+
+        try {
+            if (dryRun) {
+                List<MirrorAction> actions = mirror.plan();
+
+                for (MirrorAction action: actions) {
+                    System.out.println(action);
+                }
+
+                System.out.println(String.format("%d action(s) planned", actions.size()));
+                return true;
+            }
+
+            List<TransferResult> results = mirror.run();
+
+            int succeeded = 0;
+            long totalBytes = 0;
+
+            for (TransferResult result: results) {
+                System.out.println(result);
+
+                if (result.isSuccessful()) {
+                    ++succeeded;
+                    totalBytes += result.getBytesTransferred();
+                }
+
+            }
+
+            System.out.println(String.format(
+                    "%d of %d action(s) done, %d bytes in total",
+                    succeeded, results.size(), totalBytes
+            ));
+
+            return noneFailed(results);
+        } catch (IOException e) {
+            System.out.println(e.getMessage() + "!");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Mirror interrupted!");
+        }
+
+        return false;
+    }
+
+    private boolean confirmLocalOverwrite(String fileNameOnLocal) {
+        System.out.print(String.format(
+                "File '%s' is already existed in your computer. Do you want to overwrite it (Y/N)? ",
+                fileNameOnLocal
+        ));
+
+        String overwrite = scanConsole.nextLine().trim().toLowerCase();
+
+        return !overwrite.equals("n");
+    }
+
+    private boolean confirmServerOverwrite(String fileNameOnServer) {
+        System.out.print(String.format(
+                "File '%s' already exists on the server. Do you want to overwrite it (Y/N)? ",
+                fileNameOnServer
+        ));
+
+        String overwrite = scanConsole.nextLine().trim().toUpperCase();
+
+        return !overwrite.equals("N");
+    }
+
+    private boolean transferInParallel(ArrayList<String> commandArguments, boolean download)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() == 0) {
             throw new InvalidCommandException();
         }
 
-        String fileNameOnLocal = commandArguments.get(0);
+        List<TransferResult> results;
+
+        try {
+            if (sessionPool == null) {
+                sessionPool = new FTPSessionPool(this, parallelSessions);
+            }
+
+            // Without a command policy (at the console) existing files are skipped rather than asked about
+            ParallelTransfer parallelTransfer = (commandOverwritePolicy == null)
+                    ? new ParallelTransfer(sessionPool)
+                    : new ParallelTransfer(sessionPool, commandOverwritePolicy);
+
+            results = download
+                    ? parallelTransfer.retrieveAll(commandArguments)
+                    : parallelTransfer.storeAll(commandArguments);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Transfers interrupted!");
+            return false;
+        }
+
+        int succeeded = 0;
+        long totalBytes = 0;
+
+        for (TransferResult result: results) {
+            System.out.println(result);
+
+            if (result.isSuccessful()) {
+                ++succeeded;
+                totalBytes += result.getBytesTransferred();
+            }
+
+        }
+
+        System.out.println(String.format(
+                "%d of %d file(s) transferred, %d bytes in total",
+                succeeded, results.size(), totalBytes
+        ));
+
+        return noneFailed(results);
+    }
+
+    // Transfers skipped because their target exists are not failures
+    private static boolean noneFailed(List<TransferResult> results) {
+        for (TransferResult result: results) {
+            if (result.getStatus() == TransferResult.Status.FAILED) {
+                return false;
+            }
+
+        }
+
+        return true;
+    }
+
+    // Download a file without printing anything.
+    // overwritePolicy applies to an already-existing local file; without one, the user is asked at the console.
+    // Exception: the session has been terminated
+    private TransferResult retrieveFile(String fileNameOnServer, String fileNameOnLocal,
+                                        OverwritePolicy overwritePolicy) throws AutoTerminatedException {
+        TransferResult result = runWithRetry(
+                () -> retrieveFileFromServer(fileNameOnServer, fileNameOnLocal, overwritePolicy), true
+        );
+
+        FTPMetrics.shared().recordTransfer(FTPMetrics.Direction.DOWNLOAD, result);
+        return result;
+    }
+
+    private TransferResult retrieveFileFromServer(String fileNameOnServer, String fileNameOnLocal,
+                                                  OverwritePolicy overwritePolicy) throws AutoTerminatedException {
+        long startTime = System.nanoTime();
+
+        File fileRetrieved = clientDirectory.resolve(fileNameOnLocal).toFile();
+
+        String journalKey = null;
+        long resumeOffset = 0;
+
+        if (transferJournal != null) {
+            journalKey = TransferJournal.downloadKey(getServerName(), getServerPath(fileNameOnServer), fileNameOnLocal);
+
+            // The checkpoint is only usable if the partial file still holds every byte it covers
+            resumeOffset = Math.max(0, transferJournal.getOffset(journalKey));
+            if (resumeOffset > fileRetrieved.length()) {
+                resumeOffset = 0;
+            }
+        }
+
+        String renamedFrom = null;
+
+        // See if user wants to overwite already-existing file. A partial file left by an earlier attempt is ours.
+        if (resumeOffset == 0 && fileRetrieved.exists()) {
+            if (overwritePolicy == null) {
+                overwritePolicy = confirmLocalOverwrite(fileNameOnLocal) ? OverwritePolicy.OVERWRITE : OverwritePolicy.SKIP;
+            }
+
+            if (overwritePolicy == OverwritePolicy.SKIP || overwritePolicy == OverwritePolicy.FAIL) {
+                return transferResult(
+                        fileNameOnServer,
+                        overwritePolicy == OverwritePolicy.SKIP ? TransferResult.Status.SKIPPED : TransferResult.Status.FAILED,
+                        String.format("File '%s' already exists in your computer", fileNameOnLocal),
+                        0, startTime
+                );
+            }
+
+            if (overwritePolicy == OverwritePolicy.RENAME) {
+                renamedFrom = fileNameOnLocal;
+
+                for (int n = 1; fileRetrieved.exists(); ++n) {
+                    fileNameOnLocal = renamedFileName(renamedFrom, n);
+                    fileRetrieved = clientDirectory.resolve(fileNameOnLocal).toFile();
+                }
+
+                if (journalKey != null) {
+                    journalKey = TransferJournal.downloadKey(getServerName(), getServerPath(fileNameOnServer), fileNameOnLocal);
+                }
+            }
+
+        }
+
+        FTPResponse ftpResponse;
+
+        boolean compressed = selectTransferMode(fileNameOnServer);
+
+        DataConnectionStrategy.DataConnection dataConnection = openDataConnection();
+
+        if (dataConnection == null) {
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Error establishing data connection!", 0, startTime
+            );
+        }
+
+        // SIZE goes out together with the next request, so that it costs no round trip of its own.
+        // -1 if the server cannot tell: the download then just goes ahead
+        queueRequest(FTPRequestCode.FILE_SIZE, fileNameOnServer);
+
+        long remoteSize;
+
+        // Continue where the earlier attempt stopped, or start over if the server cannot restart
+        if (resumeOffset > 0) {
+            sendRequest(FTPRequestCode.RESTART, String.valueOf(resumeOffset));
+
+            remoteSize = readRemoteFileSize();
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+            if (ftpResponse.code != FTPResponseCode.PENDING_FURTHER_INFORMATION) {
+                resumeOffset = 0;
+            }
+
+            // Send real File-Downloading request
+            sendRequest(FTPRequestCode.DOWNLOAD_FILE, fileNameOnServer);
+        } else {
+            // Send real File-Downloading request
+            sendRequest(FTPRequestCode.DOWNLOAD_FILE, fileNameOnServer);
+
+            remoteSize = readRemoteFileSize();
+        }
+
+        ftpResponse = getResponse();
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        // File not exist on server. Terminated
+        if (ftpResponse.code == FTPResponseCode.REQUEST_FILE_ACTION_FAILED) {
+            dataConnection.cancel();
+
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    String.format("File '%s' does not exist on server!", fileNameOnServer),
+                    0, startTime
+            );
+        }
+
+        if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+            terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        // Nothing has been written yet: drop the data connection and let the server abort the transfer
+        if (remoteSize > 0 && !hasRoomFor(fileRetrieved, remoteSize)) {
+            try {
+                dataConnection.accept().close();
+            } catch (Exception e) {
+                // Silently ignore the exception
+            }
+
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    String.format("Not enough free space in your computer for file '%s'!", fileNameOnLocal),
+                    0, startTime
+            );
+        }
+
+        FileChannel fileRetrievedChannel;
+
+        try {
+            fileRetrievedChannel = FileChannel.open(
+                    fileRetrieved.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+            );
+            fileRetrievedChannel.truncate(resumeOffset);
+        } catch (Exception e) {
+            dataConnection.cancel();
+
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Error creating file in your computer!", 0, startTime
+            );
+        }
+
+        Socket dataSocket = null;
+
+        try {
+            dataSocket = dataConnection.accept();
+        } catch (Exception e) {
+            try {
+                fileRetrievedChannel.close();
+            } catch (Exception se) {
+                // Silently ignore the exception
+            }
+
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Error establishing data connection!", 0, startTime
+            );
+        }
+
+        DataTransfer dataTransfer = newDataTransfer();
+        dataTransfer.setPipelined(remoteSize < 0 || remoteSize - resumeOffset >= PIPELINE_MIN_SIZE);
+
+        if (journalKey != null) {
+            setDownloadCheckpoint(dataTransfer, fileRetrievedChannel, journalKey, resumeOffset);
+        }
+
+        if (compressed) {
+            dataTransfer.setCompressionLevel(compressionLevel);
+        }
+
+        ChecksumAlgorithm.Digester digester = startDigest(dataTransfer);
+
+        int errorOccured = (digester == null || resumeOffset == 0)
+                ? DataTransfer.NO_ERROR
+                : dataTransfer.digestPrefix(fileRetrievedChannel, resumeOffset);
+
+        if (errorOccured == DataTransfer.NO_ERROR) {
+            errorOccured = dataTransfer.receive(dataSocket, fileRetrievedChannel, resumeOffset);
+        }
+
+        boolean keepPartialFile = false;
 
-        String fileNameOnServer = fileNameOnLocal;
-        if (commandArguments.size() == 2) {
-            fileNameOnServer = commandArguments.get(1);
+        if (journalKey != null && errorOccured != DataTransfer.LOCAL_ERROR) {
+            // What has been written so far becomes the next checkpoint
+            try {
+                fileRetrievedChannel.force(false);
+                transferJournal.record(journalKey, resumeOffset + dataTransfer.getBytesTransferred());
+
+                keepPartialFile = true;
+            } catch (Exception e) {
+                // Silently ignore the exception: the last checkpoint stays valid
+            }
+        }
+
+        try {
+            fileRetrievedChannel.close();
+
+            dataSocket.close();
+        } catch (Exception e) {
+            // Silently ignore this error
+        }
+
+        ftpResponse = getResponse();
+
+        // File download succesfully, without any error
+        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED && errorOccured == DataTransfer.NO_ERROR) {
+            String checksum = (digester != null) ? ChecksumAlgorithm.toHex(digester.digest()) : null;
+            Boolean checksumMatches = (checksum != null) ? verifyChecksum(fileNameOnServer, checksum) : null;
+
+            if (journalKey != null) {
+                transferJournal.remove(journalKey);
+            }
+
+            // The data arrived corrupted: do not keep it
+            if (Boolean.FALSE.equals(checksumMatches)) {
+                try {
+                    fileRetrieved.delete();
+                } catch (Exception e) {
+                    // Silently ignore the exception
+                }
+
+                return checksumResult(transferResult(
+                        fileNameOnServer, TransferResult.Status.FAILED,
+                        String.format("%s checksum of downloaded file does not match the server's!", checksumAlgorithm),
+                        dataTransfer.getBytesTransferred(), startTime
+                ), checksum, checksumMatches);
+            }
+
+            String message = String.format("File '%s' has been downloaded successfully", fileNameOnServer);
+
+            if (renamedFrom != null) {
+                message += String.format(" as '%s'", fileNameOnLocal);
+            }
+
+            if (compressed) {
+                message += String.format(" (compressed to %d bytes)", dataTransfer.getCompressedBytes());
+            }
+
+            if (checksumMatches != null) {
+                message += String.format(" (%s checksum verified)", checksumAlgorithm);
+            }
+
+            return checksumResult(transferResult(
+                    fileNameOnServer, TransferResult.Status.SUCCEEDED,
+                    message, dataTransfer.getBytesTransferred(), startTime
+            ), checksum, checksumMatches);
+        }
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        // Otherwise, downloaded file has error and need deleting, unless it can be resumed later
+        if (!keepPartialFile) {
+            try {
+                fileRetrieved.delete();
+            } catch (Exception e) {
+                // Silently ignore the exception
+            }
+
+            if (journalKey != null) {
+                transferJournal.remove(journalKey);
+            }
+        }
+
+        if (ftpResponse.code != FTPResponseCode.DATA_TRANSFER_COMPLETED
+                && ftpResponse.code != FTPResponseCode.DATA_TRANSFER_ERROR) {
+            terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        String message = (errorOccured == DataTransfer.LOCAL_ERROR)
+                ? "Error saving downloaded file to computer!"
+                : "Error retrieving file data from server!";
+
+        if (keepPartialFile) {
+            message += " Run the download again to resume it.";
+        }
+
+        return transferResult(
+                fileNameOnServer, TransferResult.Status.FAILED,
+                message, dataTransfer.getBytesTransferred(), startTime
+        );
+    }
+
+    // Upload a file without printing anything.
+    // overwritePolicy applies to a file that already exists on the server; without one, the user is asked at the console.
+    // Exception: the session has been terminated
+    private TransferResult storeFile(String fileNameOnLocal, String fileNameOnServer,
+                                     OverwritePolicy overwritePolicy) throws AutoTerminatedException {
+        // Another attempt would find the partial file of the failed one, unless it may overwrite or resume it
+        boolean repeatable = overwritePolicy == OverwritePolicy.OVERWRITE || transferJournal != null;
+
+        try {
+            TransferResult result = runWithRetry(
+                    () -> storeFileOnServer(fileNameOnLocal, fileNameOnServer, overwritePolicy), repeatable
+            );
+
+            FTPMetrics.shared().recordTransfer(FTPMetrics.Direction.UPLOAD, result);
+            return result;
+        } finally {
+            // Even a failed upload may have left a file on the server
+            invalidateListing(fileNameOnServer);
+        }
+
+    }
+
+    private TransferResult storeFileOnServer(String fileNameOnLocal, String fileNameOnServer,
+                                             OverwritePolicy overwritePolicy) throws AutoTerminatedException {
+        long startTime = System.nanoTime();
+
+        File fileUploaded = clientDirectory.resolve(fileNameOnLocal).toFile();
+
+        // See if the uploaded file exists or not
+        if (!fileUploaded.exists()) {
+            return transferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    String.format("File '%s' does not exist in your client directory!", fileNameOnLocal),
+                    0, startTime
+            );
+        }
+
+        String journalKey = null;
+        boolean partialFileOnServer = false;
+        long resumeOffset = 0;
+
+        if (transferJournal != null) {
+            journalKey = TransferJournal.uploadKey(getServerName(), fileNameOnLocal, getServerPath(fileNameOnServer));
+            partialFileOnServer = transferJournal.getOffset(journalKey) >= 0;
+
+            // Only the server knows how much of the earlier attempt it has stored
+            if (partialFileOnServer) {
+                long storedSize = getRemoteFileSize(fileNameOnServer);
+
+                if (storedSize > 0 && storedSize <= fileUploaded.length()) {
+                    resumeOffset = storedSize;
+                }
+            }
+        }
+
+        FTPResponse ftpResponse = null;
+
+        boolean compressed = selectTransferMode(fileNameOnLocal);
+
+        DataConnectionStrategy.DataConnection dataConnection = openDataConnection();
+
+        if (dataConnection == null) {
+            return transferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    "Error establishing data connection!", 0, startTime
+            );
+        }
+
+        // Append the rest of the file to what the server already has
+        if (resumeOffset > 0) {
+            sendRequest(FTPRequestCode.APPEND, fileNameOnServer);
+
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+            if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+                resumeOffset = 0;
+            }
+
+        }
+
+        if (resumeOffset == 0 && (partialFileOnServer || overwritePolicy == OverwritePolicy.OVERWRITE)) {
+            // The file on the server is what is left of an earlier attempt, or is to be replaced anyway:
+            // store it without probing with STOU first
+            sendRequest(FTPRequestCode.UPLOAD_FILE_OVERWRITE, fileNameOnServer);
+
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+            if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+                terminate();
+                throw new AutoTerminatedException("Invalid response from server");
+            }
+
+        } else if (resumeOffset == 0) {
+            // Try sending upload-no-overwrite request first
+            sendRequest(FTPRequestCode.UPLOAD_FILE_NO_OVERWITE, fileNameOnServer);
+
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+        }
+
+        String renamedFrom = null;
+
+        // Look for a free name on the server: every taken name costs one more STOU
+        if (ftpResponse.code == FTPResponseCode.REQUEST_FILE_ACTION_FAILED && overwritePolicy == OverwritePolicy.RENAME) {
+            renamedFrom = fileNameOnServer;
+
+            for (int n = 1; n <= MAX_RENAME_ATTEMPTS && ftpResponse.code == FTPResponseCode.REQUEST_FILE_ACTION_FAILED; ++n) {
+                fileNameOnServer = renamedFileName(renamedFrom, n);
+
+                sendRequest(FTPRequestCode.UPLOAD_FILE_NO_OVERWITE, fileNameOnServer);
+
+                ftpResponse = getResponse();
+
+                if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                    terminate();
+                    throw new AutoTerminatedException("Server automatically logged out");
+                }
+
+            }
+
+            if (journalKey != null) {
+                journalKey = TransferJournal.uploadKey(getServerName(), fileNameOnLocal, getServerPath(fileNameOnServer));
+            }
+        }
+
+        // File already exist on server. Ask if it should be overwritten or not
+        if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+            if (ftpResponse.code != FTPResponseCode.REQUEST_FILE_ACTION_FAILED) {
+                terminate();
+                throw new AutoTerminatedException("Invalid response from server");
+            }
+
+            if (overwritePolicy == null) {
+                overwritePolicy = confirmServerOverwrite(fileNameOnServer) ? OverwritePolicy.OVERWRITE : OverwritePolicy.SKIP;
+            }
+
+            if (overwritePolicy != OverwritePolicy.OVERWRITE) {
+                dataConnection.cancel();
+
+                return transferResult(
+                        fileNameOnLocal,
+                        overwritePolicy == OverwritePolicy.SKIP ? TransferResult.Status.SKIPPED : TransferResult.Status.FAILED,
+                        String.format("File '%s' already exists on the server", fileNameOnServer),
+                        0, startTime
+                );
+            }
+
+            // Overwrite the file on the server: send upload-overwrite request
+            sendRequest(FTPRequestCode.UPLOAD_FILE_OVERWRITE, fileNameOnServer);
+
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+            }
+
+            if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+                terminate();
+                throw new AutoTerminatedException("Invalid response from server");
+            }
+
+        }
+
+        FileInputStream fileUploadedInStream;
+
+        try {
+            fileUploadedInStream = new FileInputStream(fileUploaded);
+        } catch (Exception e) {
+            dataConnection.cancel();
+
+            return transferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    "Error accessing file in your computer!", 0, startTime
+            );
+        }
+
+        Socket dataSocket = null;
+
+        try {
+            dataSocket = dataConnection.accept();
+        } catch (Exception e) {
+            try {
+                fileUploadedInStream.close();
+            } catch (Exception se) {
+                // Silently ignore the exception
+            }
+
+            return transferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    "Error establishing data connection!", 0, startTime
+            );
+        }
+
+        DataTransfer dataTransfer = newDataTransfer();
+        dataTransfer.setPipelined(fileUploaded.length() - resumeOffset >= PIPELINE_MIN_SIZE);
+
+        if (journalKey != null) {
+            setUploadCheckpoint(dataTransfer, journalKey, resumeOffset);
+        }
+
+        if (compressed) {
+            dataTransfer.setCompressionLevel(compressionLevel);
+        }
+
+        ChecksumAlgorithm.Digester digester = startDigest(dataTransfer);
+
+        int errorOccured = (digester == null || resumeOffset == 0)
+                ? DataTransfer.NO_ERROR
+                : dataTransfer.digestPrefix(fileUploadedInStream.getChannel(), resumeOffset);
+
+        if (errorOccured == DataTransfer.NO_ERROR) {
+            errorOccured = dataTransfer.send(fileUploadedInStream.getChannel(), resumeOffset, dataSocket);
+        }
+
+        try {
+            fileUploadedInStream.close();
+
+            dataSocket.close();
+        } catch (Exception e) {
+            // Silently ignore this error
+        }
+
+        ftpResponse = getResponse();
+
+        // File uploaded succesfully, without any error
+        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED && errorOccured == DataTransfer.NO_ERROR) {
+            String checksum = (digester != null) ? ChecksumAlgorithm.toHex(digester.digest()) : null;
+            Boolean checksumMatches = (checksum != null) ? verifyChecksum(fileNameOnServer, checksum) : null;
+
+            if (journalKey != null) {
+                transferJournal.remove(journalKey);
+            }
+
+            // The file stored on the server is corrupted: delete it
+            if (Boolean.FALSE.equals(checksumMatches)) {
+                sendRequest(FTPRequestCode.DELETE, fileNameOnServer);
+
+                ftpResponse = getResponse();
+
+                if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                    terminate();
+                    throw new AutoTerminatedException("Server automatically logged out");
+                }
+
+                return checksumResult(transferResult(
+                        fileNameOnLocal, TransferResult.Status.FAILED,
+                        String.format("%s checksum of uploaded file does not match the server's!", checksumAlgorithm),
+                        dataTransfer.getBytesTransferred(), startTime
+                ), checksum, checksumMatches);
+            }
+
+            String message = String.format("File '%s' has been uploaded successfully", fileNameOnLocal);
+
+            if (renamedFrom != null) {
+                message += String.format(" as '%s'", fileNameOnServer);
+            }
+
+            if (compressed) {
+                message += String.format(" (compressed to %d bytes)", dataTransfer.getCompressedBytes());
+            }
+
+            if (checksumMatches != null) {
+                message += String.format(" (%s checksum verified)", checksumAlgorithm);
+            }
+
+            return checksumResult(transferResult(
+                    fileNameOnLocal, TransferResult.Status.SUCCEEDED,
+                    message, dataTransfer.getBytesTransferred(), startTime
+            ), checksum, checksumMatches);
+        }
+
+        // Otherwise, error occurs
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        if (ftpResponse.code == FTPResponseCode.DATA_CONNECTION_OPEN_FAILED
+                || ftpResponse.code == FTPResponseCode.DATA_TRANSFER_ERROR) {
+            String message = "Error uploading file to server!";
+
+            if (journalKey != null) {
+                message += " Run the upload again to resume it.";
+            }
+
+            return transferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    message, dataTransfer.getBytesTransferred(), startTime
+            );
+        }
+
+        if (ftpResponse.code != FTPResponseCode.DATA_TRANSFER_COMPLETED) {
+            terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        // The partial file on the server is kept for a later resume
+        if (journalKey != null) {
+            return transferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    "Error uploading file to server! Run the upload again to resume it.",
+                    dataTransfer.getBytesTransferred(), startTime
+            );
         }
 
-        File fileUploaded = clientDirectory.resolve(fileNameOnLocal).toFile();
+        // Error occurs during file transmission period, but server regards it as correct transmission
+        // the file uploaded to server is corrupted.
+        // Therefore, we should issue a request to delete it
+        sendRequest(FTPRequestCode.DELETE, fileNameOnServer);
+
+        ftpResponse = getResponse();
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        String message = (errorOccured == DataTransfer.LOCAL_ERROR)
+                ? "Error accessing uploaded file data in computer!"
+                : "Error uploading file to server!";
+
+        return transferResult(
+                fileNameOnLocal, TransferResult.Status.FAILED,
+                message, dataTransfer.getBytesTransferred(), startTime
+        );
+    }
+
+    // Size of a file on the server, or -1 if the server cannot tell
+    // Exception: the session has been terminated
+    long getRemoteFileSize(String fileNameOnServer) throws AutoTerminatedException {
+        sendRequest(FTPRequestCode.FILE_SIZE, fileNameOnServer);
+
+        return readRemoteFileSize();
+    }
+
+    // Reply to a SIZE request already sent
+    private long readRemoteFileSize() throws AutoTerminatedException {
+        FTPResponse ftpResponse = getResponse();
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        if (ftpResponse.code != FTPResponseCode.FILE_STATUS) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(ftpResponse.message.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    // Download length bytes of a file, starting at offset, into the same position of target.
+    // REST moves the server to the offset; unless the range runs to the end of the file,
+    // the transfer is aborted (ABOR) once the range has been received.
+    // Exception: the session has been terminated
+    TransferResult retrieveRange(String fileNameOnServer, FileChannel target, long offset, long length,
+                                 boolean toEndOfFile) throws AutoTerminatedException {
+        TransferResult result = retrieveRangeFromServer(fileNameOnServer, target, offset, length, toEndOfFile);
+
+        FTPMetrics.shared().recordTransfer(FTPMetrics.Direction.DOWNLOAD, result);
+        return result;
+    }
+
+    private TransferResult retrieveRangeFromServer(String fileNameOnServer, FileChannel target, long offset,
+                                                   long length, boolean toEndOfFile) throws AutoTerminatedException {
+        long startTime = System.nanoTime();
+
+        FTPResponse ftpResponse;
+
+        selectStreamMode();
 
-        // See if the uploaded file exists or not
-        if (!fileUploaded.exists()) {
-            System.out.println(String.format(
-                    "File '%s' does not exist in your client directory!",
-                    fileNameOnLocal
-            ));
+        DataConnectionStrategy.DataConnection dataConnection = openDataConnection();
 
-            return;
+        if (dataConnection == null) {
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Error establishing data connection!", 0, startTime
+            );
         }
 
-        FTPResponse ftpResponse;
-
-        // Ask Server to open port
-        sendRequest(
-                FTPRequestCode.OPEN_DATA_CONNECTION,
-                socket.getInetAddress().getHostAddress(),
-                String.valueOf(dataPort)
-        );
+        sendRequest(FTPRequestCode.RESTART, String.valueOf(offset));
 
         ftpResponse = getResponse();
 
         if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
+            terminate();
             throw new AutoTerminatedException("Server automatically logged out");
         }
 
-        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
+        if (ftpResponse.code != FTPResponseCode.PENDING_FURTHER_INFORMATION) {
+            dataConnection.cancel();
+
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Server does not support restarting a transfer!", 0, startTime
+            );
         }
 
-        // Try sending upload-no-overwrite request first
-        sendRequest(FTPRequestCode.UPLOAD_FILE_NO_OVERWITE, fileNameOnServer);
+        sendRequest(FTPRequestCode.DOWNLOAD_FILE, fileNameOnServer);
 
         ftpResponse = getResponse();
 
         if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
+            terminate();
             throw new AutoTerminatedException("Server automatically logged out");
         }
 
-        // File already exist on server. Ask user if they want to overwrite it or not
         if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
-            if (ftpResponse.code != FTPResponseCode.REQUEST_FILE_ACTION_FAILED) {
-                close();
-                throw new AutoTerminatedException("Invalid response from server");
-            }
+            dataConnection.cancel();
 
-            String overwrite;
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    String.format("File '%s' cannot be retrieved from server!", fileNameOnServer),
+                    0, startTime
+            );
+        }
 
-            System.out.print(String.format(
-                    "File '%s' already exists on the server. Do you want to overwrite it (Y/N)? ",
-                    fileNameOnServer
-            ));
+        Socket dataSocket;
 
-            overwrite = scanConsole.nextLine().trim().toUpperCase();
+        try {
+            dataSocket = dataConnection.accept();
+        } catch (Exception e) {
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Error establishing data connection!", 0, startTime
+            );
+        }
 
-            if (overwrite.equals("N")) {
-                return;
-            }
+        DataTransfer dataTransfer = newDataTransfer();
+        int errorOccured = dataTransfer.receive(dataSocket, target, offset, length);
 
-            // If user wants to overwrite the file on the server, then send upload-overwrite request
-            sendRequest(FTPRequestCode.UPLOAD_FILE_OVERWRITE, fileNameOnServer);
+        try {
+            dataSocket.close();
+        } catch (Exception e) {
+            // Silently ignore this error
+        }
+
+        boolean rangeReceived = (errorOccured == DataTransfer.NO_ERROR && dataTransfer.getBytesTransferred() == length);
+
+        if (!toEndOfFile) {
+            // The first reply closes the RETR (226, or 426 once aborted), the second one answers ABOR
+            sendRequest(FTPRequestCode.ABORT);
 
             ftpResponse = getResponse();
 
             if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-                close();
+                terminate();
                 throw new AutoTerminatedException("Server automatically logged out");
             }
 
-            if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
-                close();
-                throw new AutoTerminatedException("Invalid response from server");
-            }
+        }
+
+        ftpResponse = getResponse();
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
 
+        if (toEndOfFile && ftpResponse.code != FTPResponseCode.DATA_TRANSFER_COMPLETED) {
+            rangeReceived = false;
         }
 
-        FileInputStream fileUploadedInStream;
+        if (!rangeReceived) {
+            String message = (errorOccured == DataTransfer.LOCAL_ERROR)
+                    ? "Error saving downloaded file to computer!"
+                    : "Error retrieving file data from server!";
 
-        try {
-            fileUploadedInStream = new FileInputStream(fileUploaded);
-        } catch (Exception e) {
-            System.out.println("Error accessing file in your computer!");
-            return;
+            return transferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    message, dataTransfer.getBytesTransferred(), startTime
+            );
         }
 
-        Socket dataSocket = null;
-        DataOutputStream dataSocketOutStream = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
+        return transferResult(
+                fileNameOnServer, TransferResult.Status.SUCCEEDED,
+                String.format("Bytes %d-%d of '%s' have been downloaded", offset, offset + length - 1, fileNameOnServer),
+                dataTransfer.getBytesTransferred(), startTime
+        );
+    }
 
-        try {
-            dataSocket = establishDataConnection();
-            dataSocketOutStream = new DataOutputStream(dataSocket.getOutputStream());
-        } catch (Exception e) {
-            try {
-                // Close data socket
-                dataSocketOutStream.close();
-                dataSocket.close();
+    // Switch the server to MODE Z for a file worth compressing, and back to MODE S otherwise.
+    // The mode stays in place across transfers, so a run of files of the same kind costs no command.
+    // TRUE if the file is to be transferred compressed
+    // Exception: the session has been terminated
+    private boolean selectTransferMode(String fileName) throws AutoTerminatedException {
+        return selectTransferMode(compressionEnabled && !deflateModeRefused && isCompressible(fileName));
+    }
 
-                fileUploadedInStream.close();
-            } catch (Exception se) {
-                // Silently ignore the exception
-            }
+    // Listings and byte ranges are read as they come: the server must be back in MODE S for them
+    // Exception: the session has been terminated
+    private void selectStreamMode() throws AutoTerminatedException {
+        if (deflateModeSelected && selectTransferMode(false)) {
+            terminate();
+            throw new AutoTerminatedException("Server cannot go back to stream mode");
+        }
 
-            System.out.println("Error establishing data connection!");
-            return;
+    }
+
+    private boolean selectTransferMode(boolean deflate) throws AutoTerminatedException {
+        if (deflate == deflateModeSelected) {
+            return deflate;
         }
 
-        int byteSent;
-        int errorOccured = 0;
+        sendRequest(FTPRequestCode.TRANSFER_MODE, deflate ? DEFLATE_MODE : STREAM_MODE);
 
-        while (true) {
-            try {
-                byteSent = fileUploadedInStream.read(buffer, 0, BUFFER_SIZE);
-            } catch (Exception e) {
-                errorOccured = 1;
-                break;
-            }
+        FTPResponse ftpResponse = getResponse();
 
-            if (byteSent == -1) {
-                break;
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
+            // The server stays in the mode it is in
+            if (deflate) {
+                deflateModeRefused = true;
             }
 
-            try {
-                dataSocketOutStream.write(buffer, 0, byteSent);
-                dataSocketOutStream.flush();
-            } catch (Exception e) {
-                errorOccured = 2;
-                break;
+            return deflateModeSelected;
+        }
+
+        deflateModeSelected = deflate;
+
+        if (deflate) {
+            // Level of the data the server sends; a server that cannot set it uses its own
+            sendRequest(FTPRequestCode.OPTIONS, FTPRequestCode.TRANSFER_MODE, DEFLATE_MODE, "LEVEL", String.valueOf(compressionLevel));
+
+            ftpResponse = getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
             }
 
         }
 
+        return deflate;
+    }
+
+    // FALSE if the disk cannot take the file growing (or shrinking) to size bytes; TRUE if that cannot be told
+    private static boolean hasRoomFor(File file, long size) {
         try {
-            fileUploadedInStream.close();
+            Path directory = file.toPath().toAbsolutePath().getParent();
 
-            dataSocketOutStream.close();
-            dataSocket.close();
+            return Files.getFileStore(directory).getUsableSpace() >= size - file.length();
         } catch (Exception e) {
-            // Silently ignore this error
+            return true;
         }
 
-        if (errorOccured == 2) {
-            System.out.println("Error uploading file to server!");
-        } else if (errorOccured == 1) {
-            System.out.println("Error accessing uploaded file data in computer!");
-        }
+    }
 
-        ftpResponse = getResponse();
+    private static boolean isCompressible(String fileName) {
+        int extensionStart = fileName.lastIndexOf('.');
 
-        // File uploaded succesfully, without any error
-        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED && errorOccured == 0) {
-            System.out.println(String.format("File '%s' has been uploaded successfully", fileNameOnLocal));
-            return;
+        if (extensionStart == -1) {
+            return true;
         }
 
-        // Otherwise, error occurs
-        if (ftpResponse.code == FTPResponseCode.DATA_CONNECTION_OPEN_FAILED) {
-            System.out.println("Error uploading file data from server!");
-        } else if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
+        return !COMPRESSED_EXTENSIONS.contains(fileName.substring(extensionStart + 1).toLowerCase());
+    }
+
+    // Measures the setup of the data connection, up to the moment its socket is connected
+    // Exception: the session has been terminated
+    private DataConnectionStrategy.DataConnection openDataConnection() throws AutoTerminatedException {
+        long startTime = System.nanoTime();
+        DataConnectionMode mode = dataConnectionMode;
+
+        DataConnectionStrategy.DataConnection dataConnection = dataConnectionStrategy.open(this);
+
+        if (dataConnection == null) {
+            return null;
         }
 
-        if (ftpResponse.code != FTPResponseCode.DATA_TRANSFER_COMPLETED) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
-        } else {
-            // Error occurs during file transmission period, but server regards it as correct transmission
-            // the file uploaded to server is corrupted.
-            // Therefore, we should issue a request to delete it
+        return new DataConnectionStrategy.DataConnection() {
+            @Override
+            public Socket accept() throws Exception {
+                Socket dataSocket;
 
-            sendRequest(FTPRequestCode.DELETE, fileNameOnServer);
+                try {
+                    dataSocket = dataConnection.accept();
+                } catch (Exception e) {
+                    transientFailure = true;
+                    throw e;
+                }
 
-            ftpResponse = getResponse();
+                FTPMetrics.shared().recordDataConnection(mode, System.nanoTime() - startTime);
+                return dataSocket;
+            }
 
-            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-                close();
-                throw new AutoTerminatedException("Server automatically logged out");
+            @Override
+            public void cancel() {
+                dataConnection.cancel();
             }
+        };
+    }
+
+    private DataTransfer newDataTransfer() {
+        DataTransfer dataTransfer = new DataTransfer(zeroCopyEnabled, chunkSize);
 
+        if (transferBytesPerSecond == BandwidthLimiter.UNLIMITED) {
+            dataTransfer.setBandwidthLimiters(BandwidthLimiter.global(), sessionBandwidthLimiter);
+        } else {
+            dataTransfer.setBandwidthLimiters(
+                    BandwidthLimiter.global(), sessionBandwidthLimiter,
+                    new BandwidthLimiter(transferBytesPerSecond, transferBurstBytes)
+            );
         }
 
+        return dataTransfer;
     }
 
-    private void deletePath(ArrayList<String> commandArguments)
-            throws InvalidCommandException, AutoTerminatedException {
-        if (commandArguments.size() != 1) {
-            throw new InvalidCommandException();
+    // Digest of the transfer if transfers are checked, null otherwise
+    private ChecksumAlgorithm.Digester startDigest(DataTransfer dataTransfer) {
+        if (checksumAlgorithm == null) {
+            return null;
         }
 
-        sendRequest(FTPRequestCode.DELETE, commandArguments.get(0));
+        ChecksumAlgorithm.Digester digester = checksumAlgorithm.newDigester();
+        dataTransfer.setDigester(digester);
+
+        return digester;
+    }
+
+    // Whether the server's digest of the file is the same as checksum, or null if the server cannot compute one.
+    // HASH is preferred when the server advertises the algorithm; otherwise the X command of the algorithm is tried.
+    // Exception: the session has been terminated
+    private Boolean verifyChecksum(String fileNameOnServer, String checksum) throws AutoTerminatedException {
+        String hashAlgorithms = getFeature(HASH_FEATURE);
+
+        // "213 SHA-256 0-49 169cd2...9dd report.txt" for HASH, "250 169cd2...9dd" for the X commands
+        int valueIndex;
+
+        if (hashAlgorithms != null && selectHashAlgorithm(hashAlgorithms)) {
+            sendRequest(FTPRequestCode.HASH, fileNameOnServer);
+            valueIndex = 2;
+        } else if (checksumAlgorithm.getLegacyCommand() != null) {
+            sendRequest(checksumAlgorithm.getLegacyCommand(), fileNameOnServer);
+            valueIndex = 0;
+        } else {
+            return null;
+        }
 
         FTPResponse ftpResponse = getResponse();
 
         if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
+            terminate();
             throw new AutoTerminatedException("Server automatically logged out");
         }
 
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_DONE) {
-            return;
+        if (ftpResponse.code != FTPResponseCode.FILE_STATUS && ftpResponse.code != FTPResponseCode.REQUEST_ACTION_DONE) {
+            return null;
         }
 
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
-            System.out.println(ftpResponse.message + "!");
-            return;
+        String[] values = ftpResponse.message.trim().split("\\s+");
+
+        if (values.length <= valueIndex || !values[valueIndex].matches("[0-9A-Fa-f]{1," + checksum.length() + "}")) {
+            return null;
         }
 
-        // Invalid response
-        close();
-        throw new AutoTerminatedException("Invalid response from server");
-    }
+        // Checksums may come without their leading zeros
+        String serverChecksum = values[valueIndex];
 
-    private void createNewDirectory(ArrayList<String> commandArguments)
-            throws InvalidCommandException, AutoTerminatedException {
-        if (commandArguments.size() != 1) {
-            throw new InvalidCommandException();
+        while (serverChecksum.length() < checksum.length()) {
+            serverChecksum = "0" + serverChecksum;
         }
 
-        sendRequest(FTPRequestCode.MAKE_NEW_DIRECTORY, commandArguments.get(0));
+        return serverChecksum.equalsIgnoreCase(checksum);
+    }
 
-        FTPResponse ftpResponse = getResponse();
+    // Make HASH use checksumAlgorithm, with OPTS HASH unless it already does.
+    // FALSE if the server does not support the algorithm
+    // Exception: the session has been terminated
+    private boolean selectHashAlgorithm(String hashAlgorithms) throws AutoTerminatedException {
+        String wanted = checksumAlgorithm.getName();
 
-        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
+        if (wanted.equalsIgnoreCase(selectedHashAlgorithm)) {
+            return true;
         }
 
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_DONE) {
-            return;
-        }
+        boolean advertised = false;
 
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
-            System.out.println(ftpResponse.message + "!");
-            return;
-        }
+        for (String algorithm: hashAlgorithms.split(";")) {
+            algorithm = algorithm.trim();
 
-        // Invalid response
-        close();
-        throw new AutoTerminatedException("Invalid response from server");
+            if (algorithm.endsWith("*")) {
+                algorithm = algorithm.substring(0, algorithm.length() - 1);
 
-    }
+                if (selectedHashAlgorithm == null) {
+                    selectedHashAlgorithm = algorithm;
+                }
+            }
+
+            if (algorithm.equalsIgnoreCase(wanted)) {
+                advertised = true;
+            }
 
-    private void changeCurrentDirectoryOnServer(ArrayList<String> commandArguments)
-            throws InvalidCommandException, AutoTerminatedException
-    {
-        if (commandArguments.size() > 1) {
-            throw new InvalidCommandException();
         }
 
-        if (commandArguments.size() == 0) {
-            sendRequest(FTPRequestCode.GOTO_DIRECTORY);
-        } else {
-            sendRequest(FTPRequestCode.GOTO_DIRECTORY, commandArguments.get(0));
+        if (!advertised) {
+            return false;
+        }
+
+        if (wanted.equalsIgnoreCase(selectedHashAlgorithm)) {
+            return true;
         }
 
+        sendRequest(FTPRequestCode.OPTIONS, FTPRequestCode.HASH, wanted);
+
         FTPResponse ftpResponse = getResponse();
 
         if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
+            terminate();
             throw new AutoTerminatedException("Server automatically logged out");
         }
 
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_DONE) {
-            currentServerPath = ftpResponse.message.trim();
-
-            return;
+        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
+            return false;
         }
 
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
-            System.out.println(ftpResponse.message + "!");
-            return;
-        }
+        selectedHashAlgorithm = wanted;
+        return true;
+    }
 
-        // Invalid response
-        close();
-        throw new AutoTerminatedException("Invalid response from server");
+    // Every CHECKPOINT_INTERVAL bytes, make the downloaded data durable and record how far it goes
+    private void setDownloadCheckpoint(DataTransfer dataTransfer, FileChannel fileChannel, String journalKey,
+                                       long resumeOffset) {
+        try {
+            transferJournal.record(journalKey, resumeOffset);
+        } catch (Exception e) {
+            // Silently ignore the exception: the transfer just cannot be resumed
+        }
 
+        dataTransfer.setCheckpoint(CHECKPOINT_INTERVAL, bytesTransferred -> {
+            fileChannel.force(false);
+            transferJournal.record(journalKey, resumeOffset + bytesTransferred);
+        });
     }
 
-    private void listContentInDirectory(ArrayList<String> commandArguments)
-            throws InvalidCommandException, AutoTerminatedException {
-        if (commandArguments.size() != 0) {
-            throw new InvalidCommandException();
+    // For uploads the server's SIZE decides the resume offset; the journal records that an upload is unfinished
+    private void setUploadCheckpoint(DataTransfer dataTransfer, String journalKey, long resumeOffset) {
+        try {
+            transferJournal.record(journalKey, resumeOffset);
+        } catch (Exception e) {
+            // Silently ignore the exception: the transfer just cannot be resumed
         }
 
-        FTPResponse ftpResponse;
-
-        // Ask Server to open port
-        sendRequest(
-                FTPRequestCode.OPEN_DATA_CONNECTION,
-                socket.getInetAddress().getHostAddress(),
-                String.valueOf(dataPort)
+        dataTransfer.setCheckpoint(CHECKPOINT_INTERVAL, bytesTransferred ->
+                transferJournal.record(journalKey, resumeOffset + bytesTransferred)
         );
+    }
 
-        ftpResponse = getResponse();
+    private String getServerName() {
+        return host + ":" + port;
+    }
 
-        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
+    private String getServerPath(String fileNameOnServer) {
+        if (currentServerPath.equals("")) {
+            return fileNameOnServer;
         }
 
-        if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
+        return currentServerPath + "/" + fileNameOnServer;
+    }
+
+    // "report.txt" -> "report (n).txt"
+    private static String renamedFileName(String fileName, int n) {
+        int nameStart = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf(File.separatorChar)) + 1;
+        int extensionStart = fileName.lastIndexOf('.');
+
+        if (extensionStart <= nameStart) {
+            return String.format("%s (%d)", fileName, n);
         }
 
-        // Send real request
-        sendRequest(FTPRequestCode.LIST_FILE_DIRECTORY);
+        return String.format("%s (%d)%s", fileName.substring(0, extensionStart), n, fileName.substring(extensionStart));
+    }
 
-        ftpResponse = getResponse();
+    private static TransferResult transferResult(String fileName, TransferResult.Status status, String message,
+                                                 long bytesTransferred, long startTime) {
+        return new TransferResult(fileName, status, message, bytesTransferred, System.nanoTime() - startTime);
+    }
 
-        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
+    private TransferResult checksumResult(TransferResult result, String checksum, Boolean checksumMatches) {
+        if (checksum != null) {
+            result.setChecksum(checksumAlgorithm, checksum, Boolean.TRUE.equals(checksumMatches));
         }
 
-        // Current directory not exist on server anymore. Terminated
-        if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
-            System.out.println("Current directory does not exist on server anymore!");
+        return result;
+    }
 
-            return;
+    private boolean deletePath(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() == 0) {
+            throw new InvalidCommandException();
         }
 
-        if (ftpResponse.code != FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
+        if (commandArguments.size() == 1) {
+            return printFailure(delete(commandArguments.get(0)));
         }
 
-        ByteArrayOutputStream byteRetrievedOutStream = new ByteArrayOutputStream();
+        // Several paths: pipeline the DELE commands instead of waiting for each reply
+        CommandPipeline pipeline = new CommandPipeline(this);
+        for (String path: commandArguments) {
+            pipeline.delete(path);
+        }
 
-        Socket dataSocket = null;
-        DataInputStream dataSocketInpStream = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
+        return printFailures(commandArguments, pipeline.execute());
+    }
 
-        try {
-            dataSocket = establishDataConnection();
-            dataSocketInpStream = new DataInputStream(dataSocket.getInputStream());
-        } catch (Exception e) {
-            try {
-                // Close data socket
-                dataSocketInpStream.close();
-                dataSocket.close();
+    private boolean createNewDirectory(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() == 0) {
+            throw new InvalidCommandException();
+        }
 
-                byteRetrievedOutStream.close();
-            } catch (Exception se) {
-                // Silently ignore the exception
-            }
+        if (commandArguments.size() == 1) {
+            return printFailure(mkdir(commandArguments.get(0)));
+        }
 
-            System.out.println("Error establishing data connection!");
-            return;
+        CommandPipeline pipeline = new CommandPipeline(this);
+        for (String path: commandArguments) {
+            pipeline.mkdir(path);
         }
 
-        int byteReceived;
-        int errorOccured = 0;
+        return printFailures(commandArguments, pipeline.execute());
+    }
 
-        while (true) {
-            try {
-                byteReceived = dataSocketInpStream.read(buffer, 0, BUFFER_SIZE);
-            } catch (Exception e) {
-                errorOccured = 2;
-                break;
-            }
+    private boolean changeCurrentDirectoryOnServer(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException
+    {
+        if (commandArguments.size() > 1) {
+            throw new InvalidCommandException();
+        }
 
-            if (byteReceived == -1) {
-                break;
-            }
+        return printFailure(cwd(commandArguments.size() == 0 ? null : commandArguments.get(0)));
+    }
 
-            byteRetrievedOutStream.write(buffer, 0, byteReceived);
+    private boolean listContentInDirectory(ArrayList<String> commandArguments)
+            throws InvalidCommandException, AutoTerminatedException {
+        if (commandArguments.size() != 0) {
+            throw new InvalidCommandException();
         }
 
+        // Lines already printed cannot be taken back: only opening the listing is retried
+        RemoteListing listing = runWithRetry(() -> openListing(false), true);
+
+        // Print out the lines as they arrive, exactly as the server sent them
+        listing.setLineConsumer(System.out::println);
+
         try {
-            dataSocketInpStream.close();
-            dataSocket.close();
-        } catch (Exception e) {
-            // Silently ignore this error
+            while (listing.hasNext()) {
+                listing.next();
+            }
+        } finally {
+            listing.close();
         }
 
-        if (errorOccured == 2) {
-            System.out.println("Error retrieving list of files and directories from server!");
+        return printFailure(listing.getResult());
+    }
+
+    private static boolean printFailure(CommandResult result) {
+        if (!result.isSuccessful()) {
+            System.out.println(result.getMessage());
         }
 
-        ftpResponse = getResponse();
+        return result.isSuccessful();
+    }
 
-        // Directory & File list retrieved succesfully, without any error
-        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED && errorOccured == 0) {
-            try {
-                // Print out the result
-                System.out.println(byteRetrievedOutStream.toString(ENCODING_UTF8.name()));
+    private static boolean printFailures(List<String> paths, List<CommandResult> results) {
+        boolean allSucceeded = true;
 
-            } catch (Exception e) {
-                // Silently ignore this exception, as it will never happen
+        for (int i = 0; i < results.size(); ++i) {
+            if (!results.get(i).isSuccessful()) {
+                System.out.println(String.format("%s: %s", paths.get(i), results.get(i).getMessage()));
+                allSucceeded = false;
             }
 
-            return;
-        }
-
-        if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_ERROR) {
-            System.out.println("Error retrieving list of files and directories from server!");
-            return;
-        } else if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
-            close();
-            throw new AutoTerminatedException("Server automatically logged out");
-        } else {
-            close();
-            throw new AutoTerminatedException("Invalid response from server");
         }
 
+        return allSucceeded;
     }
-}
\ No newline at end of file
+}
@@ -6,9 +6,16 @@ Email: nlta@connect.ust.hk
 
 package tnl;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import tnl.FTPClient;
 
@@ -18,6 +25,30 @@ public class FTPClientConsole {
     private static final String DEFAULT_HOST_ADDRESS = "localhost";
     private static final int DEFAULT_HOST_PORT = 6788;
 
+    // Lost connections are restored, and transient failures retried (RetryPolicy.DEFAULT)
+    private static final int DEFAULT_RETRIES = RetryPolicy.DEFAULT.getMaxAttempts() - 1;
+    private static final int DEFAULT_KEEPALIVE_SECONDS = 60;
+
+    // Exit codes of batch mode
+    private static final int EXIT_SUCCESS = 0;
+    private static final int EXIT_COMMAND_FAILED = 1;
+    private static final int EXIT_INVALID_ARGUMENTS = 2;
+    private static final int EXIT_CONNECTION_FAILED = 3;
+    private static final int EXIT_LOGIN_FAILED = 4;
+    private static final int EXIT_TERMINATED = 5;
+
+    private static final List<String> BATCH_OPTIONS = Arrays.asList(
+            "host", "port", "dir", "data-ports", "user", "mode", "overwrite", "on-error", "script", "retries", "keepalive"
+    );
+
+    private static final String BATCH_USAGE =
+            "Usage: java tnl.FTPClientConsole --dir <client directory> --data-ports <first>(-<last>) --user <name>\n" +
+            "           [--host <host>] [--port <port>] [--mode active|passive]\n" +
+            "           [--overwrite overwrite|skip|fail|rename] [--on-error stop|continue] [--script <file>]\n" +
+            "           [--retries <n>] [--keepalive <seconds>]\n" +
+            "Options left out are read from FTP_DIR, FTP_DATA_PORTS, FTP_USER, FTP_HOST and FTP_PORT.\n" +
+            "The password is only read from FTP_PASSWORD. Without --script, commands are read from standard input.";
+
 
 
     private static Scanner scanConsole = new Scanner(System.in);
@@ -26,6 +57,11 @@ public class FTPClientConsole {
 
 
     public static void main(String[] argv) {
+        // Any argument selects batch mode
+        if (argv.length > 0) {
+            System.exit(runBatch(argv));
+        }
+
         String host;
         int port, dataPort;
         String clientDirectory;
@@ -99,6 +135,9 @@ public class FTPClientConsole {
             return;
         }
 
+        ftpClient.setRetryPolicy(RetryPolicy.DEFAULT);
+        ftpClient.setKeepaliveInterval(DEFAULT_KEEPALIVE_SECONDS * 1000L);
+
         System.out.println();
 
         // Username
@@ -161,7 +200,8 @@ public class FTPClientConsole {
 
         String command;
 
-        while (ftpClient.isLoggedIn()) {
+        // A session the server dropped is logged in again by the next command
+        while (ftpClient.isLoggedIn() || ftpClient.isReconnectable()) {
             System.out.print(String.format("%s> ", ftpClient.getStatusHeader()));
             command = scanConsole.nextLine().trim();
 
@@ -174,10 +214,14 @@ public class FTPClientConsole {
                 System.out.println("cd                                          Navigate to the base directory in server");
                 System.out.println("cd  <path>                                  Navigate to a directory in server");
                 System.out.println("cd ..                                       Navigate to the parent directory of the current directory in server");
-                System.out.println("mkdir <dir_name>                            Create a new directory");
-                System.out.println("rm <path>                                   Remove a file or an empty directory");
+                System.out.println("mkdir <dir_name> ...                        Create new directories");
+                System.out.println("rm <path> ...                               Remove files or empty directories");
                 System.out.println("get <file_name> (<file_name_on_local>)      Download a file to client (optionally, under a new name)");
                 System.out.println("put <file_name> (<file_name_on_server>)     Upload a file to server (optionally,  under a new name)");
+                System.out.println("pget <file_name> <n> (<file_name_on_local>) Download a large file over n parallel connections");
+                System.out.println("mget <file_name> ...                        Download several files in parallel (existing files are skipped)");
+                System.out.println("mput <file_name> ...                        Upload several files in parallel (existing files are skipped)");
+                System.out.println("mirror <push|pull> (--delete) (--dry-run)   Sync the client directory and the current directory in server");
                 System.out.println("help                                        Get help");
                 System.out.println("exit                                        Exit the program");
 
@@ -196,6 +240,11 @@ public class FTPClientConsole {
             } catch (InvalidCommandException e) {
                 System.out.println("Invalid command!");
             } catch (AutoTerminatedException e) {
+                if (ftpClient.isReconnectable()) {
+                    System.out.println(String.format("%s! Reconnecting with the next command", e.getMessage()));
+                    continue;
+                }
+
                 System.out.println(String.format("%s! Connection automatically terminated", e.getMessage()));
 
                 return;
@@ -204,4 +253,210 @@ public class FTPClientConsole {
         }
     }
 
+
+
+    // Batch mode: one session, logged in once, runs every command of the script.
+    // Blank lines and lines starting with '#' are skipped, "exit" ends the script early.
+    // A lost connection is restored and the command run again, up to --retries times (0 terminates at once);
+    // an idle session sends a NOOP every --keepalive seconds (0 sends none).
+    // Returns the exit code: 0 if every command succeeded, 1 if some failed, 2 for invalid arguments,
+    // 3 if the server cannot be reached, 4 if the login is refused, 5 if the server ended the session for good.
+    private static int runBatch(String[] argv) {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for (int i = 0; i < argv.length; i += 2) {
+            // A misspelt option must not quietly fall back to its default (or to standard input)
+            if (!argv[i].startsWith("--") || i + 1 >= argv.length || !BATCH_OPTIONS.contains(argv[i].substring(2))) {
+                System.err.println(BATCH_USAGE);
+                return EXIT_INVALID_ARGUMENTS;
+            }
+
+            options.put(argv[i].substring(2), argv[i + 1]);
+        }
+
+        String host = option(options, "host", "FTP_HOST", DEFAULT_HOST_ADDRESS);
+        String clientDirectory = option(options, "dir", "FTP_DIR", null);
+        String dataPorts = option(options, "data-ports", "FTP_DATA_PORTS", null);
+        String username = option(options, "user", "FTP_USER", null);
+        String password = System.getenv("FTP_PASSWORD");
+
+        int port, firstDataPort, lastDataPort;
+        DataConnectionMode mode;
+        OverwritePolicy overwritePolicy;
+        boolean stopOnError;
+        int retries;
+        long keepaliveSeconds;
+
+        try {
+            port = Integer.parseInt(option(options, "port", "FTP_PORT", String.valueOf(DEFAULT_HOST_PORT)));
+
+            int index = dataPorts.indexOf('-');
+            firstDataPort = Integer.parseInt(index == -1 ? dataPorts : dataPorts.substring(0, index));
+            lastDataPort = (index == -1) ? firstDataPort : Integer.parseInt(dataPorts.substring(index + 1));
+
+            mode = DataConnectionMode.valueOf(options.getOrDefault("mode", "active").toUpperCase());
+            overwritePolicy = OverwritePolicy.valueOf(options.getOrDefault("overwrite", "overwrite").toUpperCase());
+
+            String onError = options.getOrDefault("on-error", "stop");
+            if (!onError.equals("stop") && !onError.equals("continue")) {
+                throw new IllegalArgumentException();
+            }
+            stopOnError = onError.equals("stop");
+
+            retries = Integer.parseInt(options.getOrDefault("retries", String.valueOf(DEFAULT_RETRIES)));
+            keepaliveSeconds = Long.parseLong(options.getOrDefault("keepalive", String.valueOf(DEFAULT_KEEPALIVE_SECONDS)));
+            if (retries < 0 || keepaliveSeconds < 0) {
+                throw new IllegalArgumentException();
+            }
+
+            if (username == null || !Paths.get(clientDirectory).toRealPath().toFile().isDirectory()) {
+                throw new IllegalArgumentException();
+            }
+
+        } catch (Exception e) {
+            System.err.println(BATCH_USAGE);
+            return EXIT_INVALID_ARGUMENTS;
+        }
+
+        BufferedReader script;
+
+        try {
+            script = options.containsKey("script")
+                    ? Files.newBufferedReader(Paths.get(options.get("script")), StandardCharsets.UTF_8)
+                    : new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            System.err.println(String.format("Cannot read script %s!", options.get("script")));
+            return EXIT_INVALID_ARGUMENTS;
+        }
+
+        try {
+            try {
+                ftpClient = new FTPClient(host, port, firstDataPort, lastDataPort, clientDirectory);
+            } catch (Exception e) {
+                System.err.println(String.format("Cannot connect to %s:%d!", host, port));
+                return EXIT_CONNECTION_FAILED;
+            }
+
+            ftpClient.setDataConnectionMode(mode);
+            ftpClient.setCommandOverwritePolicy(overwritePolicy);
+
+            if (retries > 0) {
+                ftpClient.setRetryPolicy(new RetryPolicy(
+                        retries + 1, RetryPolicy.DEFAULT.getInitialDelayMillis(), RetryPolicy.DEFAULT.getMaxDelayMillis()
+                ));
+            }
+
+            ftpClient.setKeepaliveInterval(keepaliveSeconds * 1000);
+
+            try {
+                boolean success = ftpClient.loginWithUsername(username);
+
+                if (success && !ftpClient.isLoggedIn() && password != null) {
+                    success = ftpClient.loginWithPassword(password);
+                }
+
+                if (!success || !ftpClient.isLoggedIn()) {
+                    System.err.println(String.format("Cannot log in to %s:%d as %s!", host, port, username));
+                    ftpClient.close();
+                    return EXIT_LOGIN_FAILED;
+                }
+
+            } catch (Exception e) {
+                System.err.println(String.format("%s! Connection automatically terminated", e.getMessage()));
+                return EXIT_TERMINATED;
+            }
+
+            return runScript(script, stopOnError);
+        } finally {
+            try {
+                script.close();
+            } catch (Exception e) {
+                // Silently ignore the exception
+            }
+        }
+
+    }
+
+
+    private static int runScript(BufferedReader script, boolean stopOnError) {
+        int lineNumber = 0;
+        int commandCount = 0;
+        int failureCount = 0;
+
+        try {
+            String line;
+
+            while ((line = script.readLine()) != null) {
+                ++lineNumber;
+
+                String command = line.trim();
+
+                if (command.isEmpty() || command.startsWith("#")) {
+                    continue;
+                }
+
+                if (command.equals("exit")) {
+                    break;
+                }
+
+                System.out.println(String.format("%s> %s", ftpClient.getStatusHeader(), command));
+                ++commandCount;
+
+                boolean success;
+
+                try {
+                    success = ftpClient.executeCommand(command);
+                } catch (InvalidCommandException e) {
+                    System.out.println("Invalid command!");
+                    success = false;
+                } catch (AutoTerminatedException e) {
+                    if (!ftpClient.isReconnectable()) {
+                        throw e;
+                    }
+
+                    // Every retry failed, but the next command tries to reconnect again
+                    System.out.println(String.format("%s!", e.getMessage()));
+                    success = false;
+                }
+
+                if (!success) {
+                    ++failureCount;
+                    System.err.println(String.format("Line %d failed: %s", lineNumber, command));
+
+                    if (stopOnError) {
+                        break;
+                    }
+
+                }
+
+            }
+
+        } catch (AutoTerminatedException e) {
+            System.err.println(String.format("Line %d: %s! Connection automatically terminated", lineNumber, e.getMessage()));
+            return EXIT_TERMINATED;
+        } catch (Exception e) {
+            System.err.println(String.format("Error reading the script at line %d!", lineNumber + 1));
+            ftpClient.close();
+            return EXIT_INVALID_ARGUMENTS;
+        }
+
+        ftpClient.close();
+
+        System.out.println(String.format("%d command(s) run, %d failed", commandCount, failureCount));
+
+        return (failureCount == 0) ? EXIT_SUCCESS : EXIT_COMMAND_FAILED;
+    }
+
+
+    // The command-line option, else the environment variable, else the default
+    private static String option(Map<String, String> options, String name, String variable, String defaultValue) {
+        if (options.containsKey(name)) {
+            return options.get(name);
+        }
+
+        String value = System.getenv(variable);
+
+        return (value != null) ? value : defaultValue;
+    }
+
 }
@@ -0,0 +1,191 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+// One thread multiplexing the control and data channels of many sessions over a Selector.
+// Registered channels are only touched on this thread: other threads hand work over with execute().
+class FTPEventLoop implements AutoCloseable {
+    // Called on the loop's thread
+    interface Handler {
+        // The channel is ready for some of the operations it is interested in
+        void ready(SelectionKey key) throws IOException;
+
+        // ready() threw, or the loop is closing; the key has been cancelled
+        void failed(Exception e);
+    }
+
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        public long time;
+        public Runnable task;
+
+        public ScheduledTask(long time, Runnable task) {
+            this.time = time;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            return Long.compare(time, other.time);
+        }
+
+    }
+
+
+    private Selector selector;
+    private Thread thread;
+
+    private ConcurrentLinkedQueue<Runnable> tasks;
+
+    // Loop's thread only
+    private PriorityQueue<ScheduledTask> scheduledTasks;
+
+    private volatile boolean closed;
+
+
+    public FTPEventLoop(String name) throws IOException {
+        selector = Selector.open();
+
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        scheduledTasks = new PriorityQueue<ScheduledTask>();
+
+        closed = false;
+
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    // Runs the task on the loop's thread, from any thread
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+
+    // Loop's thread only: the task runs on it once delayMillis have passed
+    public void schedule(Runnable task, long delayMillis) {
+        scheduledTasks.add(new ScheduledTask(System.nanoTime() + delayMillis * 1000000, task));
+    }
+
+
+    // Loop's thread only
+    public SelectionKey register(SelectableChannel channel, int interestOps, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+
+        return channel.register(selector, interestOps, handler);
+    }
+
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+
+    // Channels still registered are failed and closed by the loop as it stops
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+
+    private void run() {
+        while (!closed) {
+            try {
+                long timeoutMillis = 0;
+
+                if (!scheduledTasks.isEmpty()) {
+                    // select(0) would wait forever
+                    timeoutMillis = Math.max(1, (scheduledTasks.peek().time - System.nanoTime()) / 1000000);
+                }
+
+                selector.select(timeoutMillis);
+            } catch (IOException e) {
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Handler handler = (Handler) key.attachment();
+
+                try {
+                    if (key.isValid()) {
+                        handler.ready(key);
+                    }
+                } catch (Exception e) {
+                    key.cancel();
+                    handler.failed(e);
+                }
+            }
+
+            Runnable task;
+
+            while ((task = tasks.poll()) != null) {
+                runTask(task);
+            }
+
+            long now = System.nanoTime();
+
+            while (!scheduledTasks.isEmpty() && scheduledTasks.peek().time <= now) {
+                runTask(scheduledTasks.poll().task);
+            }
+        }
+
+        // Work handed over while closing still runs, so that no caller is left waiting
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            runTask(task);
+        }
+
+        IOException closing = new IOException("Event loop closed");
+
+        for (SelectionKey key: selector.keys()) {
+            key.cancel();
+            ((Handler) key.attachment()).failed(closing);
+
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+    // A failing task must not stop the loop: the other sessions still depend on it
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // Silently ignore the exception
+        }
+
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+
+// Measurements of every session of the process: command latencies by verb, reply codes,
+// data connection setup times and transfers. Published over JMX as tnl:type=FTPMetrics
+// once the class is first used.
+// JFR events need Java 11 while the client is built for Java 8: a Listener is handed every
+// measurement as it is recorded, so that an application running on a newer JVM can commit
+// its own JFR events from it.
+public class FTPMetrics implements FTPMetricsMXBean {
+    public static final String OBJECT_NAME = "tnl:type=FTPMetrics";
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private static final FTPMetrics SHARED = new FTPMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(SHARED, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // Silently ignore the exception: the metrics are still recorded, just not published
+        }
+    }
+
+
+    public enum Direction {
+        DOWNLOAD,
+        UPLOAD
+    }
+
+
+    // Called on the thread of the session that made the measurement; must not block
+    public interface Listener {
+        void commandCompleted(String verb, int replyCode, long latencyNanos);
+
+        void dataConnectionOpened(DataConnectionMode mode, long setupNanos);
+
+        void transferCompleted(Direction direction, TransferResult result);
+    }
+
+
+    // Commands sent by one session and not answered yet, oldest first, so that pipelined commands
+    // are matched with their replies. A final reply (226 after 150) has no command left to match.
+    class CommandTimer {
+        private ArrayDeque<String> verbs;
+        private ArrayDeque<Long> sendTimes;
+
+        public CommandTimer() {
+            verbs = new ArrayDeque<String>();
+            sendTimes = new ArrayDeque<Long>();
+        }
+
+        public void sent(String verb) {
+            verbs.add(verb);
+            sendTimes.add(System.nanoTime());
+        }
+
+        public void replied(int replyCode) {
+            if (verbs.isEmpty()) {
+                recordReply(null, replyCode, 0);
+                return;
+            }
+
+            recordReply(verbs.poll(), replyCode, System.nanoTime() - sendTimes.poll());
+        }
+
+        // The connection is gone: what it left unanswered never will be
+        public void clear() {
+            verbs.clear();
+            sendTimes.clear();
+        }
+
+    }
+
+
+    private ConcurrentHashMap<String, Histogram> commandLatencies;
+    private ConcurrentHashMap<Integer, LongAdder> replyCodeCounts;
+    private ConcurrentHashMap<DataConnectionMode, Histogram> dataConnectionSetupTimes;
+
+    private LongAdder downloadCount;
+    private LongAdder uploadCount;
+    private LongAdder failedTransferCount;
+    private LongAdder bytesDownloaded;
+    private LongAdder bytesUploaded;
+    private volatile Histogram downloadThroughput;
+    private volatile Histogram uploadThroughput;
+
+    private LongAdder retryCount;
+    private LongAdder reconnectCount;
+
+    private List<Listener> listeners;
+
+
+    FTPMetrics() {
+        commandLatencies = new ConcurrentHashMap<String, Histogram>();
+        replyCodeCounts = new ConcurrentHashMap<Integer, LongAdder>();
+        dataConnectionSetupTimes = new ConcurrentHashMap<DataConnectionMode, Histogram>();
+
+        downloadCount = new LongAdder();
+        uploadCount = new LongAdder();
+        failedTransferCount = new LongAdder();
+        bytesDownloaded = new LongAdder();
+        bytesUploaded = new LongAdder();
+        downloadThroughput = new Histogram();
+        uploadThroughput = new Histogram();
+
+        retryCount = new LongAdder();
+        reconnectCount = new LongAdder();
+
+        listeners = new CopyOnWriteArrayList<Listener>();
+    }
+
+
+    public static FTPMetrics shared() {
+        return SHARED;
+    }
+
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+
+    CommandTimer newCommandTimer() {
+        return new CommandTimer();
+    }
+
+
+    // verb is null for a reply that answers no command of its own
+    void recordReply(String verb, int replyCode, long latencyNanos) {
+        replyCodeCounts.computeIfAbsent(replyCode, code -> new LongAdder()).increment();
+
+        if (verb == null) {
+            return;
+        }
+
+        commandLatencies.computeIfAbsent(verb, v -> new Histogram()).record(latencyNanos);
+
+        for (Listener listener: listeners) {
+            listener.commandCompleted(verb, replyCode, latencyNanos);
+        }
+
+    }
+
+
+    void recordDataConnection(DataConnectionMode mode, long setupNanos) {
+        dataConnectionSetupTimes.computeIfAbsent(mode, m -> new Histogram()).record(setupNanos);
+
+        for (Listener listener: listeners) {
+            listener.dataConnectionOpened(mode, setupNanos);
+        }
+
+    }
+
+
+    // Skipped transfers moved nothing and are not counted
+    void recordTransfer(Direction direction, TransferResult result) {
+        if (result.getStatus() == TransferResult.Status.SKIPPED) {
+            return;
+        }
+
+        if (direction == Direction.DOWNLOAD) {
+            downloadCount.increment();
+            bytesDownloaded.add(result.getBytesTransferred());
+        } else {
+            uploadCount.increment();
+            bytesUploaded.add(result.getBytesTransferred());
+        }
+
+        if (!result.isSuccessful()) {
+            failedTransferCount.increment();
+        } else if (result.getBytesTransferred() > 0 && result.getElapsedNanos() > 0) {
+            long bytesPerSecond = (long) (result.getBytesTransferred() * 1e9 / result.getElapsedNanos());
+
+            (direction == Direction.DOWNLOAD ? downloadThroughput : uploadThroughput).record(bytesPerSecond);
+        }
+
+        for (Listener listener: listeners) {
+            listener.transferCompleted(direction, result);
+        }
+
+    }
+
+
+    // An operation is run again after failing for a passing reason (see RetryPolicy)
+    void recordRetry() {
+        retryCount.increment();
+    }
+
+
+    // A session has replaced its lost control connection and logged in again
+    void recordReconnect() {
+        reconnectCount.increment();
+    }
+
+
+    @Override
+    public Map<String, Histogram.Snapshot> getCommandLatencyMillis() {
+        Map<String, Histogram.Snapshot> snapshots = new TreeMap<String, Histogram.Snapshot>();
+
+        for (Map.Entry<String, Histogram> entry: commandLatencies.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot(NANOS_PER_MILLI));
+        }
+
+        return snapshots;
+    }
+
+    @Override
+    public Map<Integer, Long> getReplyCodeCounts() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+
+        for (Map.Entry<Integer, LongAdder> entry: replyCodeCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return counts;
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getDataConnectionSetupMillis() {
+        Map<String, Histogram.Snapshot> snapshots = new TreeMap<String, Histogram.Snapshot>();
+
+        for (Map.Entry<DataConnectionMode, Histogram> entry: dataConnectionSetupTimes.entrySet()) {
+            snapshots.put(entry.getKey().name(), entry.getValue().snapshot(NANOS_PER_MILLI));
+        }
+
+        return snapshots;
+    }
+
+    @Override
+    public long getDownloadCount() {
+        return downloadCount.sum();
+    }
+
+    @Override
+    public long getUploadCount() {
+        return uploadCount.sum();
+    }
+
+    @Override
+    public long getFailedTransferCount() {
+        return failedTransferCount.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public Histogram.Snapshot getDownloadThroughputBytesPerSecond() {
+        return downloadThroughput.snapshot(1);
+    }
+
+    @Override
+    public Histogram.Snapshot getUploadThroughputBytesPerSecond() {
+        return uploadThroughput.snapshot(1);
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retryCount.sum();
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return reconnectCount.sum();
+    }
+
+
+    // Measurements being recorded while resetting may be lost
+    @Override
+    public void reset() {
+        commandLatencies.clear();
+        replyCodeCounts.clear();
+        dataConnectionSetupTimes.clear();
+
+        downloadCount.reset();
+        uploadCount.reset();
+        failedTransferCount.reset();
+        bytesDownloaded.reset();
+        bytesUploaded.reset();
+        downloadThroughput = new Histogram();
+        uploadThroughput = new Histogram();
+        retryCount.reset();
+        reconnectCount.reset();
+    }
+
+}
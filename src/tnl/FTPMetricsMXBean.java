@@ -0,0 +1,41 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.Map;
+
+
+// Management interface of FTPMetrics, published as tnl:type=FTPMetrics
+public interface FTPMetricsMXBean {
+    // Time from sending a command to its first reply, by verb
+    Map<String, Histogram.Snapshot> getCommandLatencyMillis();
+
+    Map<Integer, Long> getReplyCodeCounts();
+
+    // Time from PORT/PASV/EPSV until the data socket is connected, by data connection mode
+    Map<String, Histogram.Snapshot> getDataConnectionSetupMillis();
+
+    long getDownloadCount();
+
+    long getUploadCount();
+
+    long getFailedTransferCount();
+
+    long getBytesDownloaded();
+
+    long getBytesUploaded();
+
+    Histogram.Snapshot getDownloadThroughputBytesPerSecond();
+
+    Histogram.Snapshot getUploadThroughputBytesPerSecond();
+
+    long getRetryCount();
+
+    long getReconnectCount();
+
+    void reset();
+}
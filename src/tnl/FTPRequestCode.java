@@ -0,0 +1,44 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+class FTPRequestCode {
+    public static final String USERNAME = "USER";
+    public static final String PASSWORD = "PASS";
+
+    public static final String OPEN_DATA_CONNECTION = "PORT";
+    public static final String PASSIVE_DATA_CONNECTION = "PASV";
+    public static final String EXTENDED_PASSIVE_DATA_CONNECTION = "EPSV";
+
+    public static final String MAKE_NEW_DIRECTORY = "MKD";
+    public static final String LIST_FILE_DIRECTORY = "LIST";
+    public static final String MACHINE_LIST_DIRECTORY = "MLSD";
+    public static final String MACHINE_LIST_FILE = "MLST";
+    public static final String GOTO_DIRECTORY = "CWD";
+
+    public static final String DELETE = "DELE";
+
+    public static final String FILE_SIZE = "SIZE";
+    public static final String RESTART = "REST";
+    public static final String ABORT = "ABOR";
+    public static final String TRANSFER_MODE = "MODE";
+
+    public static final String DOWNLOAD_FILE = "RETR";
+    public static final String UPLOAD_FILE_NO_OVERWITE = "STOU";
+    public static final String UPLOAD_FILE_OVERWRITE = "STORE";
+    public static final String APPEND = "APPE";
+
+    public static final String FEATURES = "FEAT";
+    public static final String OPTIONS = "OPTS";
+    public static final String HASH = "HASH";
+
+    public static final String KEEP_ALIVE = "NOOP";
+
+    public static final String LOGOUT = "QUIT";
+}
@@ -0,0 +1,21 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+class FTPResponse {
+    public int code;
+    public String message;
+
+
+    public FTPResponse(int code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+class FTPResponseCode {
+    public static final int SIGNAL_DATA_CONNECTION_OPEN = 150;
+
+    public static final int SYSTEM_STATUS = 211;
+    public static final int FILE_STATUS = 213;
+    public static final int DATA_CONNECTION_OPEN_NO_TRANSFER = 225;
+
+    public static final int LOGGED_IN = 230;
+    public static final int LOGGED_OUT = 221;
+    public static final int REQUEST_ACTION_DONE = 250;
+    public static final int DATA_TRANSFER_COMPLETED = 226;
+    public static final int DATA_CONNECTION_OPEN_DONE = 200;
+    public static final int PASSIVE_MODE_ENTERED = 227;
+    public static final int EXTENDED_PASSIVE_MODE_ENTERED = 229;
+
+    public static final int ENTER_PASS = 331;
+    public static final int PENDING_FURTHER_INFORMATION = 350;
+
+    public static final int FORCED_LOGGED_OUT = 421;
+    public static final int DATA_CONNECTION_OPEN_FAILED = 425;
+    public static final int DATA_TRANSFER_ERROR = 426;
+    public static final int REQUEST_FILE_ACTION_FAILED = 450;
+    public static final int REQUEST_ACTION_FAILED = 451;
+
+    public static final int COMMAND_UNRECOGNIZED = 500;
+    public static final int SYNTAX_ERROR = 501;
+    public static final int COMMAND_NOT_IMPLEMENTED = 502;
+    public static final int PARAMETER_NOT_IMPLEMENTED = 504;
+    public static final int FILE_UNAVAILABLE = 550;
+
+    private static final int[] RESPONSE_CODES = {
+            150,
+            211, 213, 225, 230, 221, 250, 226, 200, 227, 229,
+            331, 350,
+            421, 425, 426, 450, 451,
+            500, 501, 502, 504, 550
+    };
+
+    // Indexed by code, so that checking a reply neither boxes nor searches
+    private static final boolean[] VALID_CODES = new boolean[600];
+
+    static {
+        for (int code: RESPONSE_CODES) {
+            VALID_CODES[code] = true;
+        }
+    }
+
+
+    public static boolean isValidCode(int code) {
+        return code >= 0 && code < VALID_CODES.length && VALID_CODES[code];
+    }
+
+
+    // The server does not know or does not support the command
+    public static boolean isNotSupported(int code) {
+        return code == COMMAND_UNRECOGNIZED || code == SYNTAX_ERROR
+                || code == COMMAND_NOT_IMPLEMENTED || code == PARAMETER_NOT_IMPLEMENTED;
+    }
+
+
+    // The command may well succeed if it is sent again: the server dropped the session (421), or could not
+    // open or keep the data connection (425, 426).
+    // Unlike on most servers, 450 is a final answer here: the file to retrieve is missing, or the file
+    // to store without overwriting already exists.
+    public static boolean isTransient(int code) {
+        return code == FORCED_LOGGED_OUT || code == DATA_CONNECTION_OPEN_FAILED || code == DATA_TRANSFER_ERROR;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+// Bounded pool of logged-in sessions to the same server, opened lazily from a template client
+public class FTPSessionPool {
+    private FTPClient template;
+    private int maxSessions;
+
+    private LinkedBlockingQueue<FTPClient> idleSessions;
+    private List<FTPClient> allSessions;
+    private boolean closed;
+
+
+    public FTPSessionPool(FTPClient template, int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("At least one session is needed");
+        }
+
+        this.template = template;
+        this.maxSessions = maxSessions;
+
+        idleSessions = new LinkedBlockingQueue<FTPClient>();
+        allSessions = new ArrayList<FTPClient>();
+        closed = false;
+    }
+
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+
+    // Take an idle session, opening a new one while the pool is below its bound
+    public FTPClient borrow() throws Exception {
+        FTPClient session = idleSessions.poll();
+        if (session != null) {
+            return session;
+        }
+
+        boolean mayOpen;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Session pool is closed");
+            }
+
+            mayOpen = allSessions.size() < maxSessions;
+            if (mayOpen) {
+                // Reserve the slot before the (slow) login happens outside the lock
+                allSessions.add(null);
+            }
+        }
+
+        if (!mayOpen) {
+            return idleSessions.take();
+        }
+
+        try {
+            session = template.newSession();
+        } catch (Exception e) {
+            synchronized (this) {
+                allSessions.remove(null);
+            }
+
+            throw e;
+        }
+
+        synchronized (this) {
+            allSessions.set(allSessions.indexOf(null), session);
+        }
+
+        return session;
+    }
+
+
+    // Hand a session back; a session terminated by the server is dropped and replaced on a later borrow
+    public void giveBack(FTPClient session) {
+        if (session.isLoggedIn()) {
+            synchronized (this) {
+                if (!closed) {
+                    idleSessions.offer(session);
+                    return;
+                }
+            }
+
+            session.close();
+            return;
+        }
+
+        synchronized (this) {
+            allSessions.remove(session);
+        }
+
+    }
+
+
+    public void close() {
+        List<FTPClient> sessions;
+
+        synchronized (this) {
+            closed = true;
+
+            sessions = new ArrayList<FTPClient>(allSessions);
+            allSessions.clear();
+            idleSessions.clear();
+        }
+
+        for (FTPClient session: sessions) {
+            if (session != null) {
+                session.close();
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// Distribution of non-negative values (latencies in nanoseconds, throughputs in bytes per second).
+// Every power of two is split into 8 buckets, so a percentile is off by at most 12.5%.
+// Recording only updates atomics, so any number of sessions may record at the same time.
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKET_COUNT = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+
+    // Read-only copy of a histogram, scaled into the unit it is published in
+    public static class Snapshot {
+        private long count;
+        private double mean;
+        private double median;
+        private double p90;
+        private double p99;
+        private double max;
+
+        @ConstructorProperties({"count", "mean", "median", "p90", "p99", "max"})
+        public Snapshot(long count, double mean, double median, double p90, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.median = median;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getMedian() {
+            return median;
+        }
+
+        public double getP90() {
+            return p90;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "count=%d mean=%.3f median=%.3f p90=%.3f p99=%.3f max=%.3f",
+                    count, mean, median, p90, p99, max
+            );
+        }
+
+    }
+
+
+    private AtomicLongArray buckets;
+    private LongAdder count;
+    private LongAdder sum;
+    private AtomicLong max;
+
+
+    public Histogram() {
+        buckets = new AtomicLongArray(BUCKET_COUNT);
+        count = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLong(0);
+    }
+
+
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+
+    public long getCount() {
+        return count.sum();
+    }
+
+
+    // Values are divided by unit: 1000000 turns nanoseconds into milliseconds
+    public Snapshot snapshot(double unit) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0);
+        }
+
+        // A bucket's middle may lie above the largest value recorded in it
+        double maxValue = max.get();
+
+        return new Snapshot(
+                total,
+                sum.sum() / (double) count.sum() / unit,
+                Math.min(percentile(counts, total, 0.50), maxValue) / unit,
+                Math.min(percentile(counts, total, 0.90), maxValue) / unit,
+                Math.min(percentile(counts, total, 0.99), maxValue) / unit,
+                maxValue / unit
+        );
+    }
+
+
+    // Values below SUB_BUCKETS have a bucket each; above, the top SUB_BUCKET_BITS bits below the
+    // highest one pick one of the SUB_BUCKETS buckets of that power of two
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + subBucket;
+    }
+
+
+    // Middle of the bucket
+    private static double valueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) / 2.0;
+    }
+
+
+    private static double percentile(long[] counts, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return valueOf(i);
+            }
+        }
+
+        return valueOf(counts.length - 1);
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+// Outcome of LIST (or MLSD): the listing exactly as sent by the server
+public class ListResult extends CommandResult {
+    private String listing;
+    private boolean machineReadable;
+
+
+    public ListResult(boolean successful, String message, String listing) {
+        this(successful, message, listing, false);
+    }
+
+
+    // machineReadable: the listing is in the MLSD format rather than the free LIST format
+    public ListResult(boolean successful, String message, String listing, boolean machineReadable) {
+        super(successful, message);
+
+        this.listing = listing;
+        this.machineReadable = machineReadable;
+    }
+
+
+    public String getListing() {
+        return listing;
+    }
+
+    public boolean isMachineReadable() {
+        return machineReadable;
+    }
+
+    // One entry per line, without the line terminators
+    public List<String> getLines() {
+        List<String> lines = new ArrayList<String>();
+
+        for (String line: listing.split("\r?\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+
+        return lines;
+    }
+
+}
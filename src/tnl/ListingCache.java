@@ -0,0 +1,128 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+// Listings of server directories, keyed by server path, so that repeated ls of an unchanged directory
+// does not cost a data connection and a LIST each time.
+// Entries expire after a fixed time and the least recently used one is evicted once the cache is full.
+// The client invalidates the directories touched by its own rm, mkdir, put and cd;
+// changes made by anybody else only show up once the entry has expired.
+// Shared by the sessions opened from the same client, hence synchronized.
+public class ListingCache {
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    public static final long DEFAULT_TTL_MILLIS = 10000;
+
+
+    private static class CachedListing {
+        public ListResult listing;
+        public long expiresAt;
+
+        public CachedListing(ListResult listing, long expiresAt) {
+            this.listing = listing;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+
+    private int maxEntries;
+    private long ttlNanos;
+    private LinkedHashMap<String, CachedListing> entries;
+
+    private long hitCount;
+    private long missCount;
+
+
+    public ListingCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("Invalid listing cache size or time-to-live");
+        }
+
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000;
+
+        // Access order: the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, CachedListing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+                return size() > ListingCache.this.maxEntries;
+            }
+        };
+
+        this.hitCount = 0;
+        this.missCount = 0;
+    }
+
+
+    // null if the directory is not cached, its listing has expired or is not in the wanted format
+    public synchronized ListResult get(String serverPath, boolean machineReadable) {
+        CachedListing entry = entries.get(serverPath);
+
+        if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(serverPath);
+            entry = null;
+        }
+
+        if (entry == null || entry.listing.isMachineReadable() != machineReadable) {
+            ++missCount;
+            return null;
+        }
+
+        ++hitCount;
+        return entry.listing;
+    }
+
+
+    public synchronized void put(String serverPath, ListResult listing) {
+        entries.put(serverPath, new CachedListing(listing, System.nanoTime() + ttlNanos));
+    }
+
+
+    public synchronized void invalidate(String serverPath) {
+        entries.remove(serverPath);
+    }
+
+
+    // serverPath itself and every directory below it
+    public synchronized void invalidateTree(String serverPath) {
+        Iterator<String> iterator = entries.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            String cachedPath = iterator.next();
+
+            if (serverPath.equals("") || cachedPath.equals(serverPath) || cachedPath.startsWith(serverPath + "/")) {
+                iterator.remove();
+            }
+
+        }
+
+    }
+
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.TextStyle;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// Turns LIST and MLSD lines into RemoteEntry records.
+// For LIST, understands the Unix "ls -l" format and the DOS/IIS format; any other line is taken as a bare name.
+// LIST gives times in the server's local time without a zone: they are read as UTC.
+// MLSD facts are exact, and their times are UTC by definition.
+class ListingParser {
+    // drwxr-xr-x 2 owner group 4096 Jan 16 14:30 name
+    // -rw-r--r-- 1 owner 1048576 Jan 16  2023 name
+    private static final Pattern UNIX_LINE = Pattern.compile(
+            "^([-dlbcps])\\S{9}\\S*\\s+\\d+\\s+\\S+\\s+(?:\\S+\\s+)?(\\d+)\\s+"
+                    + "([A-Za-z]{3})\\s+(\\d{1,2})\\s+(?:(\\d{1,2}):(\\d{2})|(\\d{4}))\\s(.+)$"
+    );
+
+    // 01-16-24  02:30PM       <DIR>          name
+    // 01-16-2024  14:30              1048576 name
+    private static final Pattern DOS_LINE = Pattern.compile(
+            "^(\\d{2})-(\\d{2})-(\\d{2}|\\d{4})\\s+(\\d{1,2}):(\\d{2})\\s*([AaPp][Mm])?\\s+(<DIR>|\\d+)\\s+(.+)$"
+    );
+
+
+    private static final DateTimeFormatter MACHINE_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+
+    private ListingParser() {
+    }
+
+
+    // null for lines that are not entries, e.g. "total 42"
+    public static RemoteEntry parse(String line) {
+        if (line.isEmpty() || line.startsWith("total ")) {
+            return null;
+        }
+
+        Matcher matcher = UNIX_LINE.matcher(line);
+        if (matcher.matches()) {
+            return parseUnixLine(line, matcher);
+        }
+
+        matcher = DOS_LINE.matcher(line);
+        if (matcher.matches()) {
+            return parseDosLine(line, matcher);
+        }
+
+        return new RemoteEntry(line, RemoteEntry.Type.UNKNOWN, -1, null, line);
+    }
+
+
+    // type=file;size=1048576;modify=20240116143000; name
+    // null for the entries of the listed directory itself and of its parent (cdir, pdir)
+    public static RemoteEntry parseMachineLine(String line) {
+        int index = line.indexOf(' ');
+
+        if (index == -1) {
+            return line.isEmpty() ? null : new RemoteEntry(line, RemoteEntry.Type.UNKNOWN, -1, null, line);
+        }
+
+        String name = line.substring(index + 1);
+
+        RemoteEntry.Type type = RemoteEntry.Type.UNKNOWN;
+        long size = -1;
+        Instant modifiedTime = null;
+
+        for (String fact: line.substring(0, index).split(";")) {
+            int equalIndex = fact.indexOf('=');
+
+            if (equalIndex == -1) {
+                continue;
+            }
+
+            String factName = fact.substring(0, equalIndex).toLowerCase();
+            String value = fact.substring(equalIndex + 1);
+
+            if (factName.equals("type")) {
+                value = value.toLowerCase();
+
+                if (value.equals("cdir") || value.equals("pdir")) {
+                    return null;
+                } else if (value.equals("file")) {
+                    type = RemoteEntry.Type.FILE;
+                } else if (value.equals("dir")) {
+                    type = RemoteEntry.Type.DIRECTORY;
+                } else if (value.startsWith("os.unix=slink") || value.startsWith("os.unix=symlink")) {
+                    type = RemoteEntry.Type.LINK;
+                }
+
+            } else if (factName.equals("size") || factName.equals("sizd")) {
+                size = parseSize(value);
+
+            } else if (factName.equals("modify")) {
+                modifiedTime = parseMachineTime(value);
+            }
+
+        }
+
+        return new RemoteEntry(name, type, size, modifiedTime, line);
+    }
+
+
+    private static RemoteEntry parseUnixLine(String line, Matcher matcher) {
+        RemoteEntry.Type type;
+        String name = matcher.group(8);
+
+        switch (matcher.group(1).charAt(0)) {
+            case '-':
+                type = RemoteEntry.Type.FILE;
+                break;
+            case 'd':
+                type = RemoteEntry.Type.DIRECTORY;
+                break;
+            case 'l':
+                type = RemoteEntry.Type.LINK;
+
+                // name -> target
+                int arrow = name.indexOf(" -> ");
+                if (arrow != -1) {
+                    name = name.substring(0, arrow);
+                }
+
+                break;
+            default:
+                type = RemoteEntry.Type.UNKNOWN;
+        }
+
+        Month month = parseMonth(matcher.group(3));
+        int day = Integer.parseInt(matcher.group(4));
+
+        LocalDateTime modifiedTime = null;
+
+        try {
+            if (month == null) {
+                modifiedTime = null;
+            } else if (matcher.group(7) != null) {
+                // "Jan 16  2023": only the date, for entries older than six months
+                modifiedTime = LocalDateTime.of(Integer.parseInt(matcher.group(7)), month, day, 0, 0);
+            } else {
+                // "Jan 16 14:30": within the last year, which one is left out
+                LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+
+                modifiedTime = LocalDateTime.of(
+                        now.getYear(), month, day,
+                        Integer.parseInt(matcher.group(5)), Integer.parseInt(matcher.group(6))
+                );
+
+                if (modifiedTime.isAfter(now.plusDays(1))) {
+                    modifiedTime = modifiedTime.minusYears(1);
+                }
+            }
+        } catch (DateTimeException e) {
+            modifiedTime = null;
+        }
+
+        return new RemoteEntry(
+                name, type, parseSize(matcher.group(2)),
+                modifiedTime == null ? null : modifiedTime.toInstant(ZoneOffset.UTC), line
+        );
+    }
+
+
+    private static RemoteEntry parseDosLine(String line, Matcher matcher) {
+        boolean isDirectory = matcher.group(7).equals("<DIR>");
+
+        LocalDateTime modifiedTime;
+
+        try {
+            int year = Integer.parseInt(matcher.group(3));
+            if (year < 100) {
+                year += (year < 70) ? 2000 : 1900;
+            }
+
+            int hour = Integer.parseInt(matcher.group(4));
+            if (matcher.group(6) != null) {
+                hour = hour % 12 + (matcher.group(6).equalsIgnoreCase("PM") ? 12 : 0);
+            }
+
+            modifiedTime = LocalDateTime.of(
+                    year, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)),
+                    hour, Integer.parseInt(matcher.group(5))
+            );
+        } catch (DateTimeException e) {
+            modifiedTime = null;
+        }
+
+        return new RemoteEntry(
+                matcher.group(8),
+                isDirectory ? RemoteEntry.Type.DIRECTORY : RemoteEntry.Type.FILE,
+                isDirectory ? -1 : parseSize(matcher.group(7)),
+                modifiedTime == null ? null : modifiedTime.toInstant(ZoneOffset.UTC), line
+        );
+    }
+
+
+    // -1 if the size is not a number, or too large to be one
+    private static long parseSize(String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    // YYYYMMDDHHMMSS, with optional fractions of a second
+    private static Instant parseMachineTime(String value) {
+        if (value.length() < 14) {
+            return null;
+        }
+
+        try {
+            Instant time = LocalDateTime.parse(value.substring(0, 14), MACHINE_TIME).toInstant(ZoneOffset.UTC);
+
+            if (value.length() > 15 && value.charAt(14) == '.') {
+                String fraction = (value.substring(15) + "000").substring(0, 3);
+                time = time.plusMillis(Integer.parseInt(fraction));
+            }
+
+            return time;
+        } catch (DateTimeException | NumberFormatException e) {
+            return null;
+        }
+
+    }
+
+
+    private static Month parseMonth(String abbreviation) {
+        for (Month month: Month.values()) {
+            if (month.getDisplayName(TextStyle.SHORT, Locale.ENGLISH).equalsIgnoreCase(abbreviation)) {
+                return month;
+            }
+        }
+
+        return null;
+    }
+
+}
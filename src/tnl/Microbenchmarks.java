@@ -0,0 +1,408 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// Microbenchmarks of the client's hot paths: command tokenization, reply parsing, request building
+// and the copy loops of downloads and uploads over loopback sockets.
+//
+//   java tnl.Microbenchmarks [-o <results file>] [-b <baseline file>] [<name filter>]
+//
+// Every benchmark is warmed up, then measured over several rounds. Next to the throughput,
+// the bytes allocated per operation by the measuring thread are reported (JMH's gc.alloc.rate.norm).
+// -o saves the results; -b compares them with results saved by an earlier run.
+public class Microbenchmarks {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final long ROUND_NANOS = 200L * 1000000;
+
+    private static final long TRANSFER_FILE_SIZE = 64L * 1024 * 1024;
+    private static final int[] CHUNK_SIZES = {64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+
+
+    // Runs the operation n times
+    private interface Operation {
+        void run(long n) throws Exception;
+    }
+
+
+    private static class Result {
+        public String name;
+        public double score;
+        public String unit;
+        public double bytesAllocatedPerOperation;
+
+        public Result(String name, double score, String unit, double bytesAllocatedPerOperation) {
+            this.name = name;
+            this.score = score;
+            this.unit = unit;
+            this.bytesAllocatedPerOperation = bytesAllocatedPerOperation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %14.1f %-6s %12.1f B/op", name, score, unit, bytesAllocatedPerOperation);
+        }
+
+    }
+
+
+    // Results are folded into this field, so that the JIT cannot drop the work that produced them
+    private static volatile int sink;
+
+
+    public static void main(String[] argv) throws Exception {
+        String resultsFile = null;
+        String baselineFile = null;
+        String filter = "";
+
+        for (int i = 0; i < argv.length; ++i) {
+            if (argv[i].equals("-o") && i + 1 < argv.length) {
+                resultsFile = argv[++i];
+            } else if (argv[i].equals("-b") && i + 1 < argv.length) {
+                baselineFile = argv[++i];
+            } else {
+                filter = argv[i];
+            }
+        }
+
+        List<Result> results = new ArrayList<Result>();
+
+        if (selected("command", filter)) {
+            results.add(measure("command.tokenize.simple", "ops/s", n -> {
+                for (long i = 0; i < n; ++i) {
+                    sink += new FTPClient.ClientCommand("ls").arguments.size();
+                }
+            }));
+
+            results.add(measure("command.tokenize.quoted", "ops/s", n -> {
+                for (long i = 0; i < n; ++i) {
+                    sink += new FTPClient.ClientCommand("get \"annual report.pdf\" report.pdf").arguments.size();
+                }
+            }));
+
+            results.add(measure("command.formatRequest", "ops/s", n -> {
+                for (long i = 0; i < n; ++i) {
+                    sink += FTPClient.formatRequest(FTPRequestCode.UPLOAD_FILE_OVERWRITE, "annual report.pdf").length();
+                }
+            }));
+        }
+
+        if (selected("reply", filter)) {
+            ControlReader singleLine = new ControlReader(new RepeatingInputStream(
+                    "226 Closing data connection, transfer complete\r\n"
+            ));
+
+            results.add(measure("reply.read.singleLine", "ops/s", n -> {
+                for (long i = 0; i < n; ++i) {
+                    sink += singleLine.readResponse(null).code;
+                }
+            }));
+
+            ControlReader multiLine = new ControlReader(new RepeatingInputStream(
+                    "211-Extensions supported:\r\n MLST size*;modify*;type*;\r\n SIZE\r\n REST STREAM\r\n211 End\r\n"
+            ));
+
+            results.add(measure("reply.read.multiLine", "ops/s", n -> {
+                for (long i = 0; i < n; ++i) {
+                    sink += multiLine.readResponse(null).code;
+                }
+            }));
+
+            int[] codes = {150, 200, 226, 250, 331, 421, 451, 550, 999};
+
+            results.add(measure("reply.isValidCode", "ops/s", n -> {
+                for (long i = 0; i < n; ++i) {
+                    sink += FTPResponseCode.isValidCode(codes[(int) (i % codes.length)]) ? 1 : 0;
+                }
+            }));
+        }
+
+        if (selected("transfer", filter)) {
+            Path file = Files.createTempFile("microbenchmark", ".bin");
+
+            try {
+                writeRandomFile(file, TRANSFER_FILE_SIZE);
+
+                for (int chunkSize: CHUNK_SIZES) {
+                    String suffix = String.format("buffered.%dk", chunkSize / 1024);
+
+                    results.add(measureTransfer("transfer.download." + suffix, file, true, false, chunkSize));
+                    results.add(measureTransfer("transfer.upload." + suffix, file, false, false, chunkSize));
+                }
+
+                // Zero-copy ignores the chunk size unless the transfer is throttled
+                results.add(measureTransfer("transfer.download.zeroCopy", file, true, true, CHUNK_SIZES[0]));
+                results.add(measureTransfer("transfer.upload.zeroCopy", file, false, true, CHUNK_SIZES[0]));
+
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+
+        Map<String, Result> baseline = (baselineFile != null) ? readResults(baselineFile) : null;
+
+        for (Result result: results) {
+            Result before = (baseline != null) ? baseline.get(result.name) : null;
+
+            if (before == null) {
+                System.out.println(result);
+            } else {
+                System.out.println(String.format(
+                        "%s  %+6.1f%% (%+.1f B/op)",
+                        result, (result.score / before.score - 1) * 100,
+                        result.bytesAllocatedPerOperation - before.bytesAllocatedPerOperation
+                ));
+            }
+        }
+
+        if (resultsFile != null) {
+            writeResults(resultsFile, results);
+        }
+    }
+
+
+    // The filter is the start of a benchmark name
+    private static boolean selected(String group, String filter) {
+        return group.startsWith(filter) || filter.startsWith(group);
+    }
+
+
+    private static Result measure(String name, String unit, Operation operation) throws Exception {
+        // Find how many operations fill a round
+        long n = 1;
+        while (timeOf(operation, n) < ROUND_NANOS / 10) {
+            n *= 2;
+        }
+        n *= 10;
+
+        for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+            operation.run(n);
+        }
+
+        long totalNanos = 0;
+        long allocatedBefore = allocatedBytes();
+
+        for (int i = 0; i < MEASURED_ROUNDS; ++i) {
+            totalNanos += timeOf(operation, n);
+        }
+
+        long allocated = allocatedBytes() - allocatedBefore;
+        long operations = n * MEASURED_ROUNDS;
+
+        return new Result(
+                name, operations * 1e9 / totalNanos, unit,
+                allocatedBefore < 0 ? -1 : allocated / (double) operations
+        );
+    }
+
+
+    // One operation is one transfer of the whole file; the score is in MB/s.
+    // The other end of the loopback connection runs on its own thread and is not counted in the allocations.
+    private static Result measureTransfer(String name, Path file, boolean download, boolean zeroCopy,
+                                          int chunkSize) throws Exception {
+        Path target = Files.createTempFile("microbenchmark", ".part");
+        ExecutorService peer = Executors.newSingleThreadExecutor();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+             FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel received = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            Operation transfer = n -> {
+                for (long i = 0; i < n; ++i) {
+                    Future<?> peerDone;
+                    int errorOccured;
+
+                    try (SocketChannel clientEnd = SocketChannel.open(server.getLocalAddress())) {
+                        SocketChannel serverEnd = server.accept();
+                        DataTransfer dataTransfer = new DataTransfer(zeroCopy, chunkSize);
+
+                        if (download) {
+                            peerDone = peer.submit(() -> sendAll(source, serverEnd));
+                            received.truncate(0);
+                            errorOccured = dataTransfer.receive(clientEnd.socket(), received, 0);
+                        } else {
+                            peerDone = peer.submit(() -> drain(serverEnd));
+                            errorOccured = dataTransfer.send(source, 0, clientEnd.socket());
+                            clientEnd.shutdownOutput();
+                        }
+
+                        peerDone.get();
+                    }
+
+                    if (errorOccured != DataTransfer.NO_ERROR) {
+                        throw new IOException("Transfer failed in " + name);
+                    }
+                }
+            };
+
+            // Transfers are long enough that a fixed number of them makes a round
+            for (int i = 0; i < 2; ++i) {
+                transfer.run(1);
+            }
+
+            long allocatedBefore = allocatedBytes();
+            long nanos = timeOf(transfer, MEASURED_ROUNDS / 2);
+            long allocated = allocatedBytes() - allocatedBefore;
+
+            double megabytes = TRANSFER_FILE_SIZE * (MEASURED_ROUNDS / 2) / (1024.0 * 1024);
+
+            return new Result(
+                    name, megabytes * 1e9 / nanos, "MB/s",
+                    allocatedBefore < 0 ? -1 : allocated / (double) (MEASURED_ROUNDS / 2)
+            );
+
+        } finally {
+            peer.shutdownNow();
+            Files.deleteIfExists(target);
+        }
+    }
+
+
+    // The same replies over and over, as a server would send them on the control connection
+    private static class RepeatingInputStream extends InputStream {
+        private byte[] bytes;
+        private int position;
+
+        public RepeatingInputStream(String replies) {
+            bytes = replies.getBytes(StandardCharsets.UTF_8);
+            position = 0;
+        }
+
+        @Override
+        public int read() {
+            int b = bytes[position] & 0xFF;
+            position = (position + 1) % bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, bytes.length - position);
+
+            System.arraycopy(bytes, position, buffer, offset, count);
+            position = (position + count) % bytes.length;
+
+            return count;
+        }
+
+    }
+
+
+    private static Void sendAll(FileChannel source, SocketChannel serverEnd) throws IOException {
+        try (SocketChannel channel = serverEnd) {
+            long position = 0;
+            long size = source.size();
+
+            while (position < size) {
+                position += source.transferTo(position, size - position, channel);
+            }
+        }
+
+        return null;
+    }
+
+
+    private static Void drain(SocketChannel serverEnd) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+        try (SocketChannel channel = serverEnd) {
+            while (channel.read(buffer) != -1) {
+                buffer.clear();
+            }
+        }
+
+        return null;
+    }
+
+
+    private static long timeOf(Operation operation, long n) throws Exception {
+        long start = System.nanoTime();
+        operation.run(n);
+        return System.nanoTime() - start;
+    }
+
+
+    // Bytes allocated so far by the current thread, or -1 if the JVM cannot tell
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+
+    private static void writeRandomFile(Path file, long size) throws IOException {
+        Random random = new Random(0);
+        byte[] block = new byte[1024 * 1024];
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                channel.write(ByteBuffer.wrap(block));
+            }
+        }
+    }
+
+
+    // One result per line: name, score, unit, bytes allocated per operation
+    private static void writeResults(String fileName, List<Result> results) throws IOException {
+        try (PrintStream out = new PrintStream(fileName, "UTF-8")) {
+            for (Result result: results) {
+                out.println(String.format(
+                        "%s\t%s\t%s\t%s", result.name, result.score, result.unit, result.bytesAllocatedPerOperation
+                ));
+            }
+        }
+    }
+
+
+    private static Map<String, Result> readResults(String fileName) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+        for (String line: Files.readAllLines(Paths.get(fileName))) {
+            String[] fields = line.split("\t");
+
+            if (fields.length == 4) {
+                results.put(fields[0], new Result(
+                        fields[0], Double.parseDouble(fields[1]), fields[2], Double.parseDouble(fields[3])
+                ));
+            }
+        }
+
+        return results;
+    }
+
+}
@@ -0,0 +1,583 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// mirror: makes one side a copy of the other, between the client directory and the current directory on the server.
+// PULL updates the client directory from the server, PUSH updates the server from the client directory.
+// Both trees are walked first (the remote one over several sessions, one listing per directory), and only
+// files that are new or whose size or modify time differ are transferred: a sync with nothing to do costs
+// one listing per directory instead of one command per file.
+// Modify times are only compared when every listing came from MLSD. LIST times have no zone and often
+// only a minute precision, so over LIST only sizes are compared; a LIST of bare names also costs one
+// SIZE per entry to tell files from directories.
+public class Mirror {
+    public enum Direction {
+        PUSH,
+        PULL
+    }
+
+
+    // Local file systems may round modify times
+    private static final long TIME_TOLERANCE_MILLIS = 2000;
+
+
+    private FTPClient template;
+    private Direction direction;
+    private boolean deleteExtraneous;
+    private int sessions;
+
+    private String baseServerPath;
+    private Path clientDirectory;
+    private volatile boolean exactTimes;
+
+    // Both trees, by relative path; sorted, so that a parent comes right before its children
+    private TreeMap<String, RemoteEntry> remoteFiles;
+    private TreeSet<String> remoteDirectories;
+    private TreeMap<String, BasicFileAttributes> localFiles;
+    private TreeSet<String> localDirectories;
+
+
+    public Mirror(FTPClient template, Direction direction) {
+        this.template = template;
+        this.direction = direction;
+        this.deleteExtraneous = false;
+        this.sessions = template.getParallelSessions();
+    }
+
+
+    // Also delete what exists only on the side being updated
+    public void setDeleteExtraneous(boolean deleteExtraneous) {
+        this.deleteExtraneous = deleteExtraneous;
+    }
+
+
+    // Number of sessions used to walk the remote tree and transfer files
+    public void setSessions(int sessions) {
+        if (sessions < 1) {
+            throw new IllegalArgumentException("At least one session is needed");
+        }
+
+        this.sessions = sessions;
+    }
+
+
+    // What run() would do, without changing anything (dry run)
+    public List<MirrorAction> plan() throws IOException, InterruptedException {
+        FTPSessionPool sessionPool = new FTPSessionPool(template, sessions);
+
+        try {
+            return plan(sessionPool);
+        } finally {
+            sessionPool.close();
+        }
+
+    }
+
+
+    // One result per action taken; an empty list means both sides were already in sync
+    public List<TransferResult> run() throws IOException, InterruptedException {
+        FTPSessionPool sessionPool = new FTPSessionPool(template, sessions);
+
+        try {
+            return execute(plan(sessionPool), sessionPool);
+        } finally {
+            sessionPool.close();
+        }
+
+    }
+
+
+    private List<MirrorAction> plan(FTPSessionPool sessionPool) throws IOException, InterruptedException {
+        baseServerPath = template.getCurrentServerPath();
+        clientDirectory = template.getClientDirectory();
+
+        // The decision must not rest on listings cached before the walk
+        if (template.getListingCache() != null) {
+            template.getListingCache().invalidateTree(baseServerPath);
+        }
+
+        walkLocalTree();
+        walkRemoteTree(sessionPool);
+
+        boolean pull = (direction == Direction.PULL);
+
+        TreeSet<String> sourceDirectories = pull ? remoteDirectories : localDirectories;
+        TreeSet<String> targetDirectories = pull ? localDirectories : remoteDirectories;
+        TreeSet<String> sourceFiles = new TreeSet<String>(pull ? remoteFiles.keySet() : localFiles.keySet());
+        TreeSet<String> targetFiles = new TreeSet<String>(pull ? localFiles.keySet() : remoteFiles.keySet());
+
+        List<MirrorAction> actions = new ArrayList<MirrorAction>();
+
+        for (String directory: sourceDirectories) {
+            if (targetFiles.contains(directory)) {
+                actions.add(new MirrorAction(MirrorAction.Kind.CONFLICT, directory, true, "a file on the other side"));
+            } else if (!targetDirectories.contains(directory)) {
+                actions.add(new MirrorAction(
+                        pull ? MirrorAction.Kind.CREATE_LOCAL_DIRECTORY : MirrorAction.Kind.CREATE_REMOTE_DIRECTORY,
+                        directory, true, "new"
+                ));
+            }
+
+        }
+
+        for (String file: sourceFiles) {
+            if (targetDirectories.contains(file)) {
+                actions.add(new MirrorAction(MirrorAction.Kind.CONFLICT, file, false, "a directory on the other side"));
+                continue;
+            }
+
+            String reason = changeReason(remoteFiles.get(file), localFiles.get(file));
+
+            if (reason != null) {
+                actions.add(new MirrorAction(
+                        pull ? MirrorAction.Kind.DOWNLOAD : MirrorAction.Kind.UPLOAD,
+                        file, false, reason, remoteFiles.get(file)
+                ));
+            }
+
+        }
+
+        if (deleteExtraneous) {
+            MirrorAction.Kind delete = pull ? MirrorAction.Kind.DELETE_LOCAL : MirrorAction.Kind.DELETE_REMOTE;
+
+            for (String file: targetFiles) {
+                if (!sourceFiles.contains(file) && !sourceDirectories.contains(file)) {
+                    actions.add(new MirrorAction(delete, file, false, "extraneous"));
+                }
+            }
+
+            // Children before their parent
+            for (String directory: targetDirectories.descendingSet()) {
+                if (!sourceDirectories.contains(directory) && !sourceFiles.contains(directory)) {
+                    actions.add(new MirrorAction(delete, directory, true, "extraneous"));
+                }
+            }
+
+        }
+
+        return actions;
+    }
+
+
+    // null if the file needs no transfer
+    private String changeReason(RemoteEntry remoteFile, BasicFileAttributes localFile) {
+        if (remoteFile == null || localFile == null) {
+            return "new";
+        }
+
+        if (remoteFile.getSize() >= 0 && remoteFile.getSize() != localFile.size()) {
+            return "size changed";
+        }
+
+        if (!exactTimes || remoteFile.getModifiedTime() == null) {
+            return null;
+        }
+
+        long remoteTime = remoteFile.getModifiedTime().toEpochMilli();
+        long localTime = localFile.lastModifiedTime().toMillis();
+
+        // A pulled file gets the modify time of the server; a pushed one is newer on the server than locally
+        if (direction == Direction.PULL && Math.abs(remoteTime - localTime) > TIME_TOLERANCE_MILLIS) {
+            return "modify time changed";
+        }
+
+        if (direction == Direction.PUSH && localTime - remoteTime > TIME_TOLERANCE_MILLIS) {
+            return "newer";
+        }
+
+        return null;
+    }
+
+
+    private void walkLocalTree() throws IOException {
+        localFiles = new TreeMap<String, BasicFileAttributes>();
+        localDirectories = new TreeSet<String>();
+
+        Files.walkFileTree(clientDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                if (!directory.equals(clientDirectory)) {
+                    localDirectories.add(relativePath(directory));
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !TransferJournal.isJournalFile(file)) {
+                    localFiles.put(relativePath(file), attributes);
+                }
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+    }
+
+
+    // Breadth first, all the directories of a level being listed in parallel
+    private void walkRemoteTree(FTPSessionPool sessionPool) throws IOException, InterruptedException {
+        remoteFiles = new TreeMap<String, RemoteEntry>();
+        remoteDirectories = new TreeSet<String>();
+        exactTimes = true;
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessionPool.getMaxSessions());
+
+        try {
+            List<String> level = new ArrayList<String>();
+            level.add("");
+
+            while (!level.isEmpty()) {
+                List<Future<List<RemoteEntry>>> futures = new ArrayList<Future<List<RemoteEntry>>>();
+
+                for (String directory: level) {
+                    futures.add(executor.submit(() -> listDirectory(sessionPool, directory)));
+                }
+
+                List<String> nextLevel = new ArrayList<String>();
+
+                for (int i = 0; i < futures.size(); ++i) {
+                    List<RemoteEntry> entries;
+
+                    try {
+                        entries = futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+
+                    for (RemoteEntry entry: entries) {
+                        if (entry.getName().equals(".") || entry.getName().equals("..")) {
+                            continue;
+                        }
+
+                        String path = childPath(level.get(i), entry.getName());
+
+                        if (entry.isDirectory()) {
+                            remoteDirectories.add(path);
+                            nextLevel.add(path);
+                        } else if (entry.getType() != RemoteEntry.Type.LINK) {
+                            remoteFiles.put(path, entry);
+                        }
+
+                    }
+
+                }
+
+                level = nextLevel;
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+
+    private List<RemoteEntry> listDirectory(FTPSessionPool sessionPool, String directory) throws Exception {
+        FTPClient session = sessionPool.borrow();
+
+        try {
+            moveTo(session, serverPath(directory));
+
+            List<RemoteEntry> entries = new ArrayList<RemoteEntry>();
+            RemoteListing listing = session.listEntries();
+
+            try {
+                while (listing.hasNext()) {
+                    entries.add(listing.next());
+                }
+            } finally {
+                listing.close();
+            }
+
+            if (!listing.getResult().isSuccessful()) {
+                throw new IOException(String.format(
+                        "Cannot list directory '%s' on server: %s", serverPath(directory), listing.getResult().getMessage()
+                ));
+            }
+
+            if (!listing.isMachineReadable()) {
+                exactTimes = false;
+            }
+
+            // A LIST of bare names does not tell files from directories: ask the server for each of them
+            for (int i = 0; i < entries.size(); ++i) {
+                RemoteEntry entry = entries.get(i);
+
+                if (entry.getType() == RemoteEntry.Type.UNKNOWN) {
+                    entries.set(i, resolveType(session, entry));
+                }
+            }
+
+            return entries;
+        } finally {
+            sessionPool.giveBack(session);
+        }
+
+    }
+
+
+    // Only files have a size (SIZE); anything else is taken as a directory, and fails the walk if it is not one
+    private static RemoteEntry resolveType(FTPClient session, RemoteEntry entry) throws AutoTerminatedException {
+        RemoteEntry status = session.stat(entry.getName());
+
+        if (status != null && status.getType() != RemoteEntry.Type.UNKNOWN) {
+            return new RemoteEntry(entry.getName(), status.getType(), status.getSize(), status.getModifiedTime(), entry.getLine());
+        }
+
+        return new RemoteEntry(entry.getName(), RemoteEntry.Type.DIRECTORY, -1, null, entry.getLine());
+    }
+
+
+    private List<TransferResult> execute(List<MirrorAction> actions, FTPSessionPool sessionPool)
+            throws IOException, InterruptedException {
+        List<TransferResult> results = new ArrayList<TransferResult>();
+
+        List<MirrorAction> transfers = new ArrayList<MirrorAction>();
+        List<MirrorAction> deletions = new ArrayList<MirrorAction>();
+
+        // Directories first, parents before children, so that the transfers have somewhere to go
+        for (MirrorAction action: actions) {
+            switch (action.getKind()) {
+                case CONFLICT:
+                    results.add(actionResult(
+                            action, TransferResult.Status.FAILED,
+                            String.format("'%s' is a file on one side and a directory on the other!", action.getPath()),
+                            System.nanoTime()
+                    ));
+                    break;
+                case CREATE_LOCAL_DIRECTORY:
+                    results.add(createLocalDirectory(action));
+                    break;
+                case CREATE_REMOTE_DIRECTORY:
+                    results.add(onSession(sessionPool, action));
+                    break;
+                case DOWNLOAD:
+                case UPLOAD:
+                    transfers.add(action);
+                    break;
+                default:
+                    deletions.add(action);
+            }
+
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(sessionPool.getMaxSessions());
+
+        try {
+            List<Future<TransferResult>> futures = new ArrayList<Future<TransferResult>>();
+
+            for (MirrorAction transfer: transfers) {
+                futures.add(executor.submit(() -> onSession(sessionPool, transfer)));
+            }
+
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(actionResult(
+                            transfers.get(i), TransferResult.Status.FAILED, String.valueOf(e.getCause()), System.nanoTime()
+                    ));
+                }
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Files before the directories holding them, as planned
+        for (MirrorAction deletion: deletions) {
+            if (deletion.getKind() == MirrorAction.Kind.DELETE_LOCAL) {
+                results.add(deleteLocal(deletion));
+            } else {
+                results.add(onSession(sessionPool, deletion));
+            }
+        }
+
+        return results;
+    }
+
+
+    // Run one remote action on a session of the pool, from the directory holding its path
+    private TransferResult onSession(FTPSessionPool sessionPool, MirrorAction action) throws InterruptedException {
+        long startTime = System.nanoTime();
+        FTPClient session;
+
+        try {
+            session = sessionPool.borrow();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            return actionResult(action, TransferResult.Status.FAILED, "Cannot open session: " + e.getMessage(), startTime);
+        }
+
+        try {
+            String path = action.getPath();
+            int index = path.lastIndexOf('/');
+
+            String name = path.substring(index + 1);
+            moveTo(session, serverPath(index == -1 ? "" : path.substring(0, index)));
+
+            switch (action.getKind()) {
+                case DOWNLOAD:
+                    TransferResult result = session.retrieve(name, toLocalPath(path), OverwritePolicy.OVERWRITE);
+
+                    if (result.isSuccessful()) {
+                        keepModifiedTime(action);
+                    }
+
+                    return result;
+                case UPLOAD:
+                    return session.store(toLocalPath(path), name, OverwritePolicy.OVERWRITE);
+                case CREATE_REMOTE_DIRECTORY:
+                    return commandResult(action, session.mkdir(name), "has been created", startTime);
+                default:
+                    return commandResult(action, session.delete(name), "has been deleted", startTime);
+            }
+
+        } catch (AutoTerminatedException | IOException e) {
+            return actionResult(action, TransferResult.Status.FAILED, e.getMessage() + "!", startTime);
+        } finally {
+            sessionPool.giveBack(session);
+        }
+
+    }
+
+
+    // The next sync compares the modify times, so the local copy takes the one of the server
+    private void keepModifiedTime(MirrorAction download) {
+        if (!exactTimes || download.getRemoteEntry().getModifiedTime() == null) {
+            return;
+        }
+
+        try {
+            Files.setLastModifiedTime(
+                    clientDirectory.resolve(toLocalPath(download.getPath())),
+                    FileTime.from(download.getRemoteEntry().getModifiedTime())
+            );
+        } catch (IOException e) {
+            // Silently ignore the exception: the file is only transferred again next time
+        }
+
+    }
+
+
+    private TransferResult createLocalDirectory(MirrorAction action) {
+        long startTime = System.nanoTime();
+
+        try {
+            Files.createDirectories(clientDirectory.resolve(toLocalPath(action.getPath())));
+        } catch (IOException e) {
+            return actionResult(
+                    action, TransferResult.Status.FAILED,
+                    String.format("Error creating directory '%s' in your computer!", action.getPath()), startTime
+            );
+        }
+
+        return actionResult(
+                action, TransferResult.Status.SUCCEEDED,
+                String.format("Directory '%s' has been created", action.getPath()), startTime
+        );
+    }
+
+
+    private TransferResult deleteLocal(MirrorAction action) {
+        long startTime = System.nanoTime();
+
+        try {
+            Files.delete(clientDirectory.resolve(toLocalPath(action.getPath())));
+        } catch (IOException e) {
+            return actionResult(
+                    action, TransferResult.Status.FAILED,
+                    String.format("Error deleting '%s' in your computer!", action.getPath()), startTime
+            );
+        }
+
+        return actionResult(
+                action, TransferResult.Status.SUCCEEDED,
+                String.format("'%s' has been deleted", action.getPath()), startTime
+        );
+    }
+
+
+    // Sessions of the pool wander between directories: bring this one to serverPath
+    private static void moveTo(FTPClient session, String serverPath) throws AutoTerminatedException, IOException {
+        if (session.getCurrentServerPath().equals(serverPath)) {
+            return;
+        }
+
+        CommandResult result = session.cwd(null);
+
+        if (result.isSuccessful() && !serverPath.equals("")) {
+            result = session.cwd(serverPath);
+        }
+
+        if (!result.isSuccessful()) {
+            throw new IOException(String.format(
+                    "Cannot go to directory '%s' on server: %s", serverPath, result.getMessage()
+            ));
+        }
+
+    }
+
+
+    private String serverPath(String relativePath) {
+        if (relativePath.equals("")) {
+            return baseServerPath;
+        }
+
+        return baseServerPath.equals("") ? relativePath : baseServerPath + "/" + relativePath;
+    }
+
+    private String relativePath(Path path) {
+        return clientDirectory.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static String toLocalPath(String relativePath) {
+        return relativePath.replace('/', File.separatorChar);
+    }
+
+    private static String childPath(String directory, String name) {
+        return directory.equals("") ? name : directory + "/" + name;
+    }
+
+
+    private static TransferResult commandResult(MirrorAction action, CommandResult result, String done, long startTime) {
+        if (!result.isSuccessful()) {
+            return actionResult(action, TransferResult.Status.FAILED, result.getMessage(), startTime);
+        }
+
+        return actionResult(
+                action, TransferResult.Status.SUCCEEDED, String.format("'%s' %s", action.getPath(), done), startTime
+        );
+    }
+
+    private static TransferResult actionResult(MirrorAction action, TransferResult.Status status, String message,
+                                               long startTime) {
+        return new TransferResult(action.getPath(), status, message, 0, System.nanoTime() - startTime);
+    }
+
+}
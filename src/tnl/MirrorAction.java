@@ -0,0 +1,75 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+// One step of a mirror plan. Paths are relative to the mirrored directories and use '/' as separator.
+public class MirrorAction {
+    public enum Kind {
+        CREATE_LOCAL_DIRECTORY,
+        CREATE_REMOTE_DIRECTORY,
+        DOWNLOAD,
+        UPLOAD,
+        DELETE_LOCAL,
+        DELETE_REMOTE,
+
+        // A file on one side, a directory on the other: left alone
+        CONFLICT
+    }
+
+
+    private Kind kind;
+    private String path;
+    private boolean directory;
+    private String reason;
+
+    // Entry of the file on the server, for downloads
+    private RemoteEntry remoteEntry;
+
+
+    public MirrorAction(Kind kind, String path, boolean directory, String reason) {
+        this(kind, path, directory, reason, null);
+    }
+
+
+    MirrorAction(Kind kind, String path, boolean directory, String reason, RemoteEntry remoteEntry) {
+        this.kind = kind;
+        this.path = path;
+        this.directory = directory;
+        this.reason = reason;
+        this.remoteEntry = remoteEntry;
+    }
+
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    RemoteEntry getRemoteEntry() {
+        return remoteEntry;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("%-23s %s%s (%s)", kind, path, directory ? "/" : "", reason);
+    }
+
+}
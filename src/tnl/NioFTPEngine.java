@@ -0,0 +1,76 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// Holds many sessions open on a small fixed set of threads, where FTPClient needs a thread per session
+// blocked on its socket. Each thread runs an event loop multiplexing the non-blocking control and data
+// channels of its sessions; a session stays on the loop it was given when it connected.
+// The sessions speak the same dialect as FTPClient and read the same reply codes (FTPResponseCode).
+public class NioFTPEngine implements AutoCloseable {
+    public static final int DEFAULT_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+
+    private FTPEventLoop[] eventLoops;
+    private AtomicInteger nextEventLoop;
+
+
+    public NioFTPEngine() throws IOException {
+        this(DEFAULT_THREADS);
+    }
+
+
+    public NioFTPEngine(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is needed");
+        }
+
+        eventLoops = new FTPEventLoop[threads];
+
+        for (int i = 0; i < threads; ++i) {
+            eventLoops[i] = new FTPEventLoop("ftp-event-loop-" + i);
+        }
+
+        nextEventLoop = new AtomicInteger(0);
+    }
+
+
+    // Completes with the session once it is logged in, or exceptionally with AutoTerminatedException.
+    // password may be null for a user that needs none.
+    public CompletableFuture<NioFTPSession> connect(String host, int port, String username, String password,
+                                                    String clientDirectory) {
+        FTPEventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+
+        if (eventLoop.isClosed()) {
+            CompletableFuture<NioFTPSession> failed = new CompletableFuture<NioFTPSession>();
+            failed.completeExceptionally(new AutoTerminatedException("Engine is closed"));
+
+            return failed;
+        }
+
+        // Resolves the host on the caller's thread, not on the event loop
+        InetSocketAddress address = new InetSocketAddress(host, port);
+
+        return new NioFTPSession(eventLoop, username, clientDirectory).connect(address, password);
+    }
+
+
+    // Sessions still open are terminated, without logging out
+    @Override
+    public void close() {
+        for (FTPEventLoop eventLoop: eventLoops) {
+            eventLoop.close();
+        }
+
+    }
+
+}
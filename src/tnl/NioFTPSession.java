@@ -0,0 +1,1032 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+
+// One session of a NioFTPEngine: a state machine driven by the replies on a non-blocking control channel.
+// Operations are queued and run one after another, as they share the control connection; each one
+// completes its future on the session's event loop thread, so callbacks attached to it must not block.
+// Once the session is terminated (421, a broken connection, a reply that makes no sense or an idle
+// timeout), every pending operation fails with AutoTerminatedException.
+public class NioFTPSession {
+    // Wait long enough to prevent immature timeout
+    private static final long IDLE_TIMEOUT_MILLIS = 20000;
+
+
+    // A command, or a short series of them, waiting for its replies
+    private abstract class Operation<T> {
+        public CompletableFuture<T> result = new CompletableFuture<T>();
+
+        public abstract void start() throws IOException;
+
+        // Preliminary (1xx) or final reply to the last command sent; 421 never gets here
+        public abstract void replied(FTPResponse ftpResponse) throws IOException;
+
+        // The session is over: release what the operation holds
+        public void terminated(AutoTerminatedException e) {
+            result.completeExceptionally(e);
+        }
+
+        // Events of the operation's data connection may still arrive once it is no longer current
+        protected void complete(T value) {
+            result.complete(value);
+
+            if (currentOperation == this) {
+                operationDone();
+            }
+
+        }
+
+    }
+
+
+    private class LoginOperation extends Operation<NioFTPSession> {
+        private String password;
+
+        public LoginOperation(String password) {
+            this.password = password;
+        }
+
+        @Override
+        public void start() throws IOException {
+            send(FTPRequestCode.USERNAME, username);
+        }
+
+        @Override
+        public void replied(FTPResponse ftpResponse) throws IOException {
+            if (ftpResponse.code == FTPResponseCode.LOGGED_IN) {
+                complete(NioFTPSession.this);
+                return;
+            }
+
+            if (ftpResponse.code == FTPResponseCode.ENTER_PASS && password != null) {
+                send(FTPRequestCode.PASSWORD, password);
+                password = null;
+                return;
+            }
+
+            terminate("Cannot log in as " + username);
+        }
+
+    }
+
+
+    // DELE, MKD and CWD: 250 when done, 451 when not
+    private class CommandOperation extends Operation<CommandResult> {
+        private String request;
+        private String path;
+
+        public CommandOperation(String request, String path) {
+            this.request = request;
+            this.path = path;
+        }
+
+        @Override
+        public void start() throws IOException {
+            if (path == null) {
+                send(request);
+            } else {
+                send(request, path);
+            }
+
+        }
+
+        @Override
+        public void replied(FTPResponse ftpResponse) throws IOException {
+            if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_DONE) {
+                // The server replies to a successful CWD with the new current directory
+                if (request.equals(FTPRequestCode.GOTO_DIRECTORY)) {
+                    currentServerPath = ftpResponse.message.trim();
+                }
+
+                complete(new CommandResult(true, ftpResponse.message));
+            } else if (ftpResponse.code == FTPResponseCode.REQUEST_ACTION_FAILED) {
+                complete(new CommandResult(false, ftpResponse.message + "!"));
+            } else {
+                terminate("Invalid response from server");
+            }
+
+        }
+
+    }
+
+
+    private class QuitOperation extends Operation<Void> {
+        @Override
+        public void start() throws IOException {
+            send(FTPRequestCode.LOGOUT);
+        }
+
+        // Whatever was queued after QUIT fails
+        @Override
+        public void replied(FTPResponse ftpResponse) {
+            result.complete(null);
+            terminate("Session is closed");
+        }
+
+        // The server may hang up without replying to QUIT
+        @Override
+        public void terminated(AutoTerminatedException e) {
+            result.complete(null);
+        }
+
+    }
+
+
+    // PORT/PASV/EPSV, then the transfer command, then the data over its own channel on the same event loop.
+    // The data only starts to move once the server has answered the command with 150; the operation
+    // is done once the data connection has been closed and the final reply has arrived, in either order.
+    private abstract class DataOperation<T> extends Operation<T> implements FTPEventLoop.Handler {
+        private String request;
+        private String argument;
+        private boolean upload;
+
+        private DataConnectionMode mode;
+        private long setupStartTime;
+        protected long startTime;
+
+        private ServerSocketChannel listenChannel;
+        private SocketChannel dataChannel;
+        private SelectionKey dataKey;
+
+        private boolean commandSent;
+        private boolean dataConnected;
+        private boolean transferStarted;
+        private boolean dataDone;
+        private boolean dataClosed;
+        private FTPResponse finalResponse;
+
+        private ByteBuffer buffer;
+        protected long bytesTransferred;
+        protected boolean localError;
+
+        public DataOperation(String request, String argument, boolean upload) {
+            this.request = request;
+            this.argument = argument;
+            this.upload = upload;
+        }
+
+        // Called once the server is ready to transfer
+        protected abstract void openFile() throws IOException;
+
+        // Upload: fills the buffer from the file; FALSE at its end
+        protected boolean fill(ByteBuffer buffer) throws IOException {
+            return false;
+        }
+
+        // Download: writes the buffer out
+        protected void drain(ByteBuffer buffer) throws IOException {
+        }
+
+        protected abstract void closeFile();
+
+        // finalResponse is null when the data connection failed
+        protected abstract T done(boolean successful, FTPResponse finalResponse);
+
+        protected abstract T refused(FTPResponse ftpResponse);
+
+        @Override
+        public void start() throws IOException {
+            startTime = System.nanoTime();
+            setupStartTime = startTime;
+
+            mode = dataConnectionMode;
+
+            if (mode == DataConnectionMode.ACTIVE) {
+                InetAddress localAddress = controlChannel.socket().getLocalAddress();
+
+                listenChannel = ServerSocketChannel.open();
+                listenChannel.bind(new InetSocketAddress(localAddress, 0), 1);
+                dataKey = eventLoop.register(listenChannel, SelectionKey.OP_ACCEPT, this);
+
+                send(FTPRequestCode.OPEN_DATA_CONNECTION,
+                        localAddress.getHostAddress(), String.valueOf(listenChannel.socket().getLocalPort()));
+            } else if (mode == DataConnectionMode.EXTENDED_PASSIVE) {
+                send(FTPRequestCode.EXTENDED_PASSIVE_DATA_CONNECTION);
+            } else {
+                send(FTPRequestCode.PASSIVE_DATA_CONNECTION);
+            }
+
+        }
+
+        @Override
+        public void replied(FTPResponse ftpResponse) throws IOException {
+            if (!commandSent) {
+                dataConnectionReplied(ftpResponse);
+                return;
+            }
+
+            if (ftpResponse.code == FTPResponseCode.SIGNAL_DATA_CONNECTION_OPEN) {
+                try {
+                    openFile();
+                } catch (IOException e) {
+                    // The server did accept the command: its final reply must end up in done(), not refused()
+                    localError = true;
+                    transferStarted = true;
+                    closeData();
+                    return;
+                }
+
+                transferStarted = true;
+                startData();
+                return;
+            }
+
+            if (!transferStarted) {
+                closeData();
+                complete(refused(ftpResponse));
+                return;
+            }
+
+            finalResponse = ftpResponse;
+
+            // The transfer has failed: no more data is coming
+            if (finalResponse.code != FTPResponseCode.DATA_TRANSFER_COMPLETED) {
+                closeData();
+            }
+
+            finishIfDone();
+        }
+
+        private void dataConnectionReplied(FTPResponse ftpResponse) throws IOException {
+            if (mode == DataConnectionMode.ACTIVE) {
+                if (ftpResponse.code != FTPResponseCode.DATA_CONNECTION_OPEN_DONE) {
+                    closeData();
+                    complete(done(false, null));
+                    return;
+                }
+
+            } else {
+                int expectedCode = (mode == DataConnectionMode.EXTENDED_PASSIVE)
+                        ? FTPResponseCode.EXTENDED_PASSIVE_MODE_ENTERED
+                        : FTPResponseCode.PASSIVE_MODE_ENTERED;
+
+                InetSocketAddress address = (ftpResponse.code == expectedCode)
+                        ? PassiveDataConnectionStrategy.parseAddress(
+                                ftpResponse.message, controlChannel.socket().getInetAddress(),
+                                mode == DataConnectionMode.EXTENDED_PASSIVE)
+                        : null;
+
+                if (address == null) {
+                    complete(done(false, null));
+                    return;
+                }
+
+                // Connect before the command is answered: many servers only reply 150 once the data connection is up
+                dataChannel = SocketChannel.open();
+                dataChannel.configureBlocking(false);
+
+                if (dataChannel.connect(address)) {
+                    dataKey = eventLoop.register(dataChannel, 0, this);
+                    dataConnected();
+                } else {
+                    dataKey = eventLoop.register(dataChannel, SelectionKey.OP_CONNECT, this);
+                }
+            }
+
+            if (argument == null) {
+                send(request);
+            } else {
+                send(request, argument);
+            }
+
+            commandSent = true;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            activity();
+
+            if (key.isAcceptable()) {
+                SocketChannel accepted = listenChannel.accept();
+
+                if (accepted == null) {
+                    return;
+                }
+
+                closeListener();
+
+                dataChannel = accepted;
+                dataKey = eventLoop.register(dataChannel, 0, this);
+                dataConnected();
+                return;
+            }
+
+            if (key.isConnectable()) {
+                if (!dataChannel.finishConnect()) {
+                    return;
+                }
+
+                key.interestOps(0);
+                dataConnected();
+                return;
+            }
+
+            if (key.isReadable()) {
+                buffer.clear();
+                int read = dataChannel.read(buffer);
+
+                if (read == -1) {
+                    dataDone = true;
+                    closeData();
+                    finishIfDone();
+                    return;
+                }
+
+                buffer.flip();
+                bytesTransferred += read;
+
+                try {
+                    drain(buffer);
+                } catch (IOException e) {
+                    localError = true;
+                    closeData();
+                    finishIfDone();
+                }
+
+                return;
+            }
+
+            if (key.isWritable()) {
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+
+                    boolean more;
+
+                    try {
+                        more = fill(buffer);
+                    } catch (IOException e) {
+                        localError = true;
+                        more = false;
+                    }
+
+                    buffer.flip();
+
+                    if (!more && !buffer.hasRemaining()) {
+                        // Closing the data connection tells the server the upload is complete
+                        dataDone = !localError;
+                        closeData();
+                        finishIfDone();
+                        return;
+                    }
+                }
+
+                bytesTransferred += dataChannel.write(buffer);
+            }
+
+        }
+
+        // A broken data connection fails the transfer; the final reply still arrives on the control connection
+        @Override
+        public void failed(Exception e) {
+            closeData();
+            finishIfDone();
+        }
+
+        @Override
+        public void terminated(AutoTerminatedException e) {
+            closeData();
+            closeFile();
+
+            super.terminated(e);
+        }
+
+        private void dataConnected() {
+            dataConnected = true;
+
+            FTPMetrics.shared().recordDataConnection(mode, System.nanoTime() - setupStartTime);
+
+            startData();
+        }
+
+        private void startData() {
+            if (!dataConnected || !transferStarted || dataKey == null || !dataKey.isValid()) {
+                return;
+            }
+
+            buffer = BufferPool.shared().lease(BufferPool.DEFAULT_CHUNK_SIZE);
+
+            if (upload) {
+                // Nothing is pending to be written yet
+                buffer.limit(0);
+            }
+
+            dataKey.interestOps(upload ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        // The final reply may come before the data connection has even been accepted: wait for both
+        private void finishIfDone() {
+            if (finalResponse == null || !dataClosed || result.isDone()) {
+                return;
+            }
+
+            closeFile();
+            complete(done(
+                    dataDone && !localError && finalResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED,
+                    finalResponse
+            ));
+        }
+
+        private void closeData() {
+            dataClosed = true;
+            closeListener();
+
+            if (dataChannel != null) {
+                try {
+                    dataChannel.close();
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+            }
+
+            if (buffer != null) {
+                BufferPool.shared().release(buffer);
+                buffer = null;
+            }
+
+        }
+
+        private void closeListener() {
+            if (listenChannel != null) {
+                try {
+                    listenChannel.close();
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+
+                listenChannel = null;
+            }
+
+        }
+
+    }
+
+
+    private class RetrieveOperation extends DataOperation<TransferResult> {
+        private String fileNameOnServer;
+        private File fileRetrieved;
+        private FileChannel fileChannel;
+
+        public RetrieveOperation(String fileNameOnServer, String fileNameOnLocal) {
+            super(FTPRequestCode.DOWNLOAD_FILE, fileNameOnServer, false);
+
+            this.fileNameOnServer = fileNameOnServer;
+            this.fileRetrieved = clientDirectory.resolve(fileNameOnLocal).toFile();
+        }
+
+        @Override
+        protected void openFile() throws IOException {
+            fileChannel = FileChannel.open(
+                    fileRetrieved.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING
+            );
+        }
+
+        @Override
+        protected void drain(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+
+        }
+
+        @Override
+        protected void closeFile() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+
+                fileChannel = null;
+            }
+
+        }
+
+        @Override
+        protected TransferResult done(boolean successful, FTPResponse finalResponse) {
+            String message;
+
+            if (successful) {
+                message = String.format("File '%s' has been downloaded successfully", fileNameOnServer);
+            } else if (finalResponse == null && bytesTransferred == 0 && !localError) {
+                message = "Error establishing data connection!";
+            } else {
+                message = localError ? "Error saving downloaded file to computer!" : "Error retrieving file data from server!";
+            }
+
+            return recorded(FTPMetrics.Direction.DOWNLOAD, new TransferResult(
+                    fileNameOnServer, successful ? TransferResult.Status.SUCCEEDED : TransferResult.Status.FAILED,
+                    message, bytesTransferred, System.nanoTime() - startTime
+            ));
+        }
+
+        @Override
+        protected TransferResult refused(FTPResponse ftpResponse) {
+            return recorded(FTPMetrics.Direction.DOWNLOAD, new TransferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    String.format("File '%s' does not exist on server!", fileNameOnServer),
+                    0, System.nanoTime() - startTime
+            ));
+        }
+
+    }
+
+
+    private class StoreOperation extends DataOperation<TransferResult> {
+        private String fileNameOnLocal;
+        private String fileNameOnServer;
+        private OverwritePolicy overwritePolicy;
+        private FileChannel fileChannel;
+
+        public StoreOperation(String fileNameOnLocal, String fileNameOnServer, OverwritePolicy overwritePolicy) {
+            // STORE replaces the file on the server; STOU refuses to (450)
+            super(
+                    overwritePolicy == OverwritePolicy.OVERWRITE
+                            ? FTPRequestCode.UPLOAD_FILE_OVERWRITE
+                            : FTPRequestCode.UPLOAD_FILE_NO_OVERWITE,
+                    fileNameOnServer, true
+            );
+
+            this.fileNameOnLocal = fileNameOnLocal;
+            this.fileNameOnServer = fileNameOnServer;
+            this.overwritePolicy = overwritePolicy;
+        }
+
+        @Override
+        protected void openFile() throws IOException {
+            fileChannel = FileChannel.open(clientDirectory.resolve(fileNameOnLocal), StandardOpenOption.READ);
+        }
+
+        @Override
+        protected boolean fill(ByteBuffer buffer) throws IOException {
+            return fileChannel.read(buffer) != -1;
+        }
+
+        @Override
+        protected void closeFile() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+
+                fileChannel = null;
+            }
+
+        }
+
+        @Override
+        protected TransferResult done(boolean successful, FTPResponse finalResponse) {
+            String message;
+
+            if (successful) {
+                message = String.format("File '%s' has been uploaded successfully", fileNameOnLocal);
+            } else if (finalResponse == null && bytesTransferred == 0 && !localError) {
+                message = "Error establishing data connection!";
+            } else {
+                message = localError ? "Error accessing uploaded file data in computer!" : "Error uploading file to server!";
+            }
+
+            return recorded(FTPMetrics.Direction.UPLOAD, new TransferResult(
+                    fileNameOnLocal, successful ? TransferResult.Status.SUCCEEDED : TransferResult.Status.FAILED,
+                    message, bytesTransferred, System.nanoTime() - startTime
+            ));
+        }
+
+        @Override
+        protected TransferResult refused(FTPResponse ftpResponse) {
+            boolean exists = ftpResponse.code == FTPResponseCode.REQUEST_FILE_ACTION_FAILED;
+
+            return recorded(FTPMetrics.Direction.UPLOAD, new TransferResult(
+                    fileNameOnLocal,
+                    exists && overwritePolicy == OverwritePolicy.SKIP ? TransferResult.Status.SKIPPED : TransferResult.Status.FAILED,
+                    exists
+                            ? String.format("File '%s' already exists on the server", fileNameOnServer)
+                            : "Error uploading file to server!",
+                    0, System.nanoTime() - startTime
+            ));
+        }
+
+    }
+
+
+    private class ListOperation extends DataOperation<ListResult> {
+        private ByteArrayOutputStream listing;
+        private WritableByteChannel listingChannel;
+
+        public ListOperation() {
+            super(FTPRequestCode.LIST_FILE_DIRECTORY, null, false);
+        }
+
+        @Override
+        protected void openFile() {
+            listing = new ByteArrayOutputStream();
+            listingChannel = Channels.newChannel(listing);
+        }
+
+        @Override
+        protected void drain(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                listingChannel.write(buffer);
+            }
+
+        }
+
+        @Override
+        protected void closeFile() {
+        }
+
+        @Override
+        protected ListResult done(boolean successful, FTPResponse finalResponse) {
+            if (!successful) {
+                return new ListResult(false, finalResponse == null
+                        ? "Error establishing data connection!"
+                        : "Error retrieving listing from server!", "");
+            }
+
+            return new ListResult(true, finalResponse.message, new String(listing.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        protected ListResult refused(FTPResponse ftpResponse) {
+            return new ListResult(false, ftpResponse.message + "!", "");
+        }
+
+    }
+
+
+    private FTPEventLoop eventLoop;
+    private Path clientDirectory;
+    private String username;
+
+    private volatile DataConnectionMode dataConnectionMode;
+
+    // Everything below is only used on the event loop thread
+    private SocketChannel controlChannel;
+    private SelectionKey controlKey;
+    private ControlReader controlReader;
+    private ArrayDeque<ByteBuffer> pendingWrites;
+
+    private ArrayDeque<Operation<?>> operations;
+    private Operation<?> currentOperation;
+    private long lastActivityTime;
+
+    private volatile String currentServerPath;
+    private volatile boolean closed;
+
+    private FTPMetrics.CommandTimer commandTimer;
+
+
+    NioFTPSession(FTPEventLoop eventLoop, String username, String clientDirectory) {
+        this.eventLoop = eventLoop;
+        this.username = username;
+        this.clientDirectory = Paths.get(clientDirectory);
+
+        dataConnectionMode = DataConnectionMode.PASSIVE;
+
+        controlReader = new ControlReader();
+        pendingWrites = new ArrayDeque<ByteBuffer>();
+
+        operations = new ArrayDeque<Operation<?>>();
+        currentOperation = null;
+
+        currentServerPath = "";
+        closed = false;
+
+        commandTimer = FTPMetrics.shared().newCommandTimer();
+    }
+
+
+    // Completes once the session is logged in
+    CompletableFuture<NioFTPSession> connect(InetSocketAddress address, String password) {
+        LoginOperation login = new LoginOperation(password);
+
+        eventLoop.execute(() -> {
+            operations.add(login);
+
+            try {
+                controlChannel = SocketChannel.open();
+                controlChannel.configureBlocking(false);
+
+                boolean connected = controlChannel.connect(address);
+                controlKey = eventLoop.register(
+                        controlChannel, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, controlHandler
+                );
+
+                if (connected) {
+                    startNextOperation();
+                }
+
+                activity();
+                scheduleIdleCheck();
+            } catch (IOException e) {
+                terminate("Cannot connect to server");
+            }
+        });
+
+        return login.result;
+    }
+
+
+    // Applies to the transfers started from now on; PASSIVE by default, as active mode
+    // needs the server to reach back to this machine
+    public void setDataConnectionMode(DataConnectionMode dataConnectionMode) {
+        this.dataConnectionMode = dataConnectionMode;
+    }
+
+    public String getCurrentServerPath() {
+        return currentServerPath;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+
+    // RENAME is not supported
+    public CompletableFuture<TransferResult> retrieve(String fileNameOnServer, String fileNameOnLocal,
+                                                      OverwritePolicy overwritePolicy) {
+        checkOverwritePolicy(overwritePolicy);
+
+        File fileRetrieved = clientDirectory.resolve(fileNameOnLocal).toFile();
+
+        if (fileRetrieved.exists() && overwritePolicy != OverwritePolicy.OVERWRITE) {
+            return CompletableFuture.completedFuture(new TransferResult(
+                    fileNameOnServer,
+                    overwritePolicy == OverwritePolicy.SKIP ? TransferResult.Status.SKIPPED : TransferResult.Status.FAILED,
+                    String.format("File '%s' already exists in your computer", fileNameOnLocal),
+                    0, 0
+            ));
+        }
+
+        return enqueue(new RetrieveOperation(fileNameOnServer, fileNameOnLocal));
+    }
+
+    // RENAME is not supported
+    public CompletableFuture<TransferResult> store(String fileNameOnLocal, String fileNameOnServer,
+                                                   OverwritePolicy overwritePolicy) {
+        checkOverwritePolicy(overwritePolicy);
+
+        if (!clientDirectory.resolve(fileNameOnLocal).toFile().isFile()) {
+            return CompletableFuture.completedFuture(new TransferResult(
+                    fileNameOnLocal, TransferResult.Status.FAILED,
+                    String.format("File '%s' does not exist in your client directory!", fileNameOnLocal),
+                    0, 0
+            ));
+        }
+
+        return enqueue(new StoreOperation(fileNameOnLocal, fileNameOnServer, overwritePolicy));
+    }
+
+    public CompletableFuture<ListResult> list() {
+        return enqueue(new ListOperation());
+    }
+
+    public CompletableFuture<CommandResult> delete(String path) {
+        return enqueue(new CommandOperation(FTPRequestCode.DELETE, path));
+    }
+
+    public CompletableFuture<CommandResult> mkdir(String path) {
+        return enqueue(new CommandOperation(FTPRequestCode.MAKE_NEW_DIRECTORY, path));
+    }
+
+    // A null path goes back to the root directory of the user
+    public CompletableFuture<CommandResult> cwd(String path) {
+        return enqueue(new CommandOperation(FTPRequestCode.GOTO_DIRECTORY, path));
+    }
+
+
+    // Log out once every operation queued so far is done
+    public CompletableFuture<Void> close() {
+        return enqueue(new QuitOperation());
+    }
+
+
+    private static void checkOverwritePolicy(OverwritePolicy overwritePolicy) {
+        if (overwritePolicy == null || overwritePolicy == OverwritePolicy.RENAME) {
+            throw new IllegalArgumentException("Overwrite policy must be SKIP, OVERWRITE or FAIL");
+        }
+
+    }
+
+
+    private <T> CompletableFuture<T> enqueue(Operation<T> operation) {
+        if (closed || eventLoop.isClosed()) {
+            operation.terminated(new AutoTerminatedException("Session is closed"));
+            return operation.result;
+        }
+
+        eventLoop.execute(() -> {
+            if (closed) {
+                operation.terminated(new AutoTerminatedException("Session is closed"));
+                return;
+            }
+
+            operations.add(operation);
+
+            if (currentOperation == null && controlKey != null && controlChannel.isConnected()) {
+                startNextOperation();
+            }
+        });
+
+        return operation.result;
+    }
+
+
+    private void startNextOperation() {
+        while (currentOperation == null && !operations.isEmpty() && !closed) {
+            currentOperation = operations.poll();
+            activity();
+
+            try {
+                currentOperation.start();
+            } catch (IOException e) {
+                terminate("Error sending request to server");
+            } catch (RuntimeException e) {
+                // An operation that cannot start fails alone
+                Operation<?> failed = currentOperation;
+                currentOperation = null;
+                failed.result.completeExceptionally(e);
+            }
+        }
+
+    }
+
+    private void operationDone() {
+        currentOperation = null;
+        startNextOperation();
+    }
+
+
+    private TransferResult recorded(FTPMetrics.Direction direction, TransferResult result) {
+        FTPMetrics.shared().recordTransfer(direction, result);
+        return result;
+    }
+
+
+    private void send(String request, String... arguments) throws IOException {
+        String line = FTPClient.formatRequest(request, arguments) + "\r\n";
+
+        pendingWrites.add(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+        commandTimer.sent(request);
+
+        flush();
+    }
+
+    private void flush() throws IOException {
+        while (!pendingWrites.isEmpty()) {
+            ByteBuffer pending = pendingWrites.peek();
+            controlChannel.write(pending);
+
+            if (pending.hasRemaining()) {
+                // The socket buffer is full: wait until it drains
+                controlKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            pendingWrites.poll();
+        }
+
+        controlKey.interestOps(SelectionKey.OP_READ);
+    }
+
+
+    private FTPEventLoop.Handler controlHandler = new FTPEventLoop.Handler() {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (!controlChannel.finishConnect()) {
+                    return;
+                }
+
+                key.interestOps(SelectionKey.OP_READ);
+                startNextOperation();
+                return;
+            }
+
+            if (key.isWritable()) {
+                flush();
+            }
+
+            if (key.isReadable()) {
+                readReplies();
+            }
+
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (eventLoop.isClosed()) {
+                terminate("Engine is closed");
+            } else {
+                terminate(controlChannel.isConnected() ? "Error reading response from server" : "Cannot connect to server");
+            }
+
+        }
+    };
+
+
+    private void readReplies() throws IOException {
+        FTPResponse ftpResponse;
+
+        while (!closed && (ftpResponse = controlReader.readResponse(controlChannel, null)) != null) {
+            activity();
+            commandTimer.replied(ftpResponse.code);
+
+            if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                terminate("Server automatically logged out");
+                return;
+            }
+
+            // A reply no command waits for is ignored
+            if (currentOperation != null) {
+                currentOperation.replied(ftpResponse);
+            }
+        }
+
+    }
+
+
+    private void activity() {
+        lastActivityTime = System.nanoTime();
+    }
+
+    // A session waiting on the server (or on connecting) for too long is terminated; an idle session is not
+    private void scheduleIdleCheck() {
+        eventLoop.schedule(() -> {
+            if (closed) {
+                return;
+            }
+
+            long idleMillis = (System.nanoTime() - lastActivityTime) / 1000000;
+
+            if ((currentOperation != null || !operations.isEmpty()) && idleMillis >= IDLE_TIMEOUT_MILLIS) {
+                terminate("Server timed out");
+                return;
+            }
+
+            scheduleIdleCheck();
+        }, IDLE_TIMEOUT_MILLIS / 4);
+    }
+
+
+    // Ends the session: every pending operation fails with the reason
+    private void terminate(String reason) {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        closeChannels();
+
+        AutoTerminatedException e = new AutoTerminatedException(reason);
+
+        if (currentOperation != null) {
+            currentOperation.terminated(e);
+            currentOperation = null;
+        }
+
+        while (!operations.isEmpty()) {
+            operations.poll().terminated(e);
+        }
+
+    }
+
+    private void closeChannels() {
+        if (controlChannel != null) {
+            try {
+                controlChannel.close();
+            } catch (IOException e) {
+                // Silently ignore the exception
+            }
+        }
+
+    }
+
+}
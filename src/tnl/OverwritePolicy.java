@@ -0,0 +1,24 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+// What a transfer does when its target file already exists
+public enum OverwritePolicy {
+    // Leave the existing file alone and report the transfer as skipped
+    SKIP,
+
+    // Replace the existing file. Uploads go straight to STORE, without probing with STOU first
+    OVERWRITE,
+
+    // Leave the existing file alone and report the transfer as failed
+    FAIL,
+
+    // Transfer to the first free name of the form "name (n).ext" next to the existing file
+    RENAME
+}
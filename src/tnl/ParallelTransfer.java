@@ -0,0 +1,109 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// mget / mput: spreads files over the sessions of a FTPSessionPool.
+// A work-stealing executor sized to the pool keeps every session busy, so a batch of small files
+// is bound by the number of sessions rather than by the round trips of each file.
+public class ParallelTransfer {
+    private FTPSessionPool sessionPool;
+    private OverwritePolicy overwritePolicy;
+
+
+    // Files that already exist at the target are skipped
+    public ParallelTransfer(FTPSessionPool sessionPool) {
+        this(sessionPool, OverwritePolicy.SKIP);
+    }
+
+
+    public ParallelTransfer(FTPSessionPool sessionPool, OverwritePolicy overwritePolicy) {
+        this.sessionPool = sessionPool;
+        this.overwritePolicy = overwritePolicy;
+    }
+
+
+    public List<TransferResult> retrieveAll(List<String> fileNamesOnServer) throws InterruptedException {
+        return runAll(fileNamesOnServer, true);
+    }
+
+
+    public List<TransferResult> storeAll(List<String> fileNamesOnLocal) throws InterruptedException {
+        return runAll(fileNamesOnLocal, false);
+    }
+
+
+    private List<TransferResult> runAll(List<String> fileNames, boolean download) throws InterruptedException {
+        ExecutorService executor = Executors.newWorkStealingPool(sessionPool.getMaxSessions());
+
+        List<Future<TransferResult>> futures = new ArrayList<Future<TransferResult>>();
+
+        try {
+            for (String fileName: fileNames) {
+                futures.add(executor.submit(() -> transfer(fileName, download)));
+            }
+
+            List<TransferResult> results = new ArrayList<TransferResult>();
+
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new TransferResult(
+                            fileNames.get(i), TransferResult.Status.FAILED,
+                            String.valueOf(e.getCause()), 0, 0
+                    ));
+                }
+
+            }
+
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+
+    private TransferResult transfer(String fileName, boolean download) {
+        long startTime = System.nanoTime();
+        FTPClient session;
+
+        try {
+            session = sessionPool.borrow();
+        } catch (Exception e) {
+            return new TransferResult(
+                    fileName, TransferResult.Status.FAILED,
+                    "Cannot open session: " + e.getMessage(), 0, System.nanoTime() - startTime
+            );
+        }
+
+        try {
+            if (download) {
+                return session.retrieve(fileName, fileName, overwritePolicy);
+            }
+
+            return session.store(fileName, fileName, overwritePolicy);
+        } catch (AutoTerminatedException e) {
+            return new TransferResult(
+                    fileName, TransferResult.Status.FAILED,
+                    e.getMessage() + "!", 0, System.nanoTime() - startTime
+            );
+        } finally {
+            sessionPool.giveBack(session);
+        }
+
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+// PASV / EPSV: the client connects out to the server, right after the server announced the port.
+// Connecting before the transfer command is answered matters: many servers only reply 150 once the
+// data connection is up.
+class PassiveDataConnectionStrategy implements DataConnectionStrategy {
+    private static final int CONNECT_TIMEOUT = 20000;
+
+    // 227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)
+    private static final Pattern PASSIVE_REPLY = Pattern.compile(
+            "(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3}),(\\d{1,3})"
+    );
+
+    // 229 Entering Extended Passive Mode (|||port|)
+    private static final Pattern EXTENDED_PASSIVE_REPLY = Pattern.compile("\\((.)\\1\\1(\\d+)\\1\\)");
+
+
+    // Cleared once the server turns EPSV down: PASV is used from then on
+    private boolean extended;
+
+
+    public PassiveDataConnectionStrategy(boolean extended) {
+        this.extended = extended;
+    }
+
+
+    @Override
+    public DataConnection open(FTPClient client) throws AutoTerminatedException {
+        if (extended) {
+            client.sendRequest(FTPRequestCode.EXTENDED_PASSIVE_DATA_CONNECTION);
+        } else {
+            client.sendRequest(FTPRequestCode.PASSIVE_DATA_CONNECTION);
+        }
+
+        FTPResponse ftpResponse = client.getResponse();
+
+        if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+            client.terminate();
+            throw new AutoTerminatedException("Server automatically logged out");
+        }
+
+        if (extended && FTPResponseCode.isNotSupported(ftpResponse.code)) {
+            extended = false;
+            return open(client);
+        }
+
+        int expectedCode = extended
+                ? FTPResponseCode.EXTENDED_PASSIVE_MODE_ENTERED
+                : FTPResponseCode.PASSIVE_MODE_ENTERED;
+
+        // Refused (not supported, or no port free on the server): the transfer fails, the session goes on
+        if (ftpResponse.code != expectedCode) {
+            return null;
+        }
+
+        InetSocketAddress address = parseAddress(ftpResponse.message, client.getServerAddress(), extended);
+
+        if (address == null) {
+            client.terminate();
+            throw new AutoTerminatedException("Invalid response from server");
+        }
+
+        SocketChannel dataChannel = null;
+
+        final Socket dataSocket;
+        try {
+            dataChannel = SocketChannel.open();
+            dataSocket = dataChannel.socket();
+            dataSocket.connect(address, CONNECT_TIMEOUT);
+        } catch (Exception e) {
+            if (dataChannel != null) {
+                try {
+                    dataChannel.close();
+                } catch (Exception ce) {
+                    // Silently ignore the exception
+                }
+            }
+
+            return null;
+        }
+
+        return new DataConnection() {
+            @Override
+            public Socket accept() {
+                return dataSocket;
+            }
+
+            @Override
+            public void cancel() {
+                try {
+                    dataSocket.close();
+                } catch (Exception e) {
+                    // Silently ignore the exception
+                }
+            }
+        };
+    }
+
+
+    // Address announced by a 227 (PASV) or 229 (EPSV) reply, or null if the reply has none
+    static InetSocketAddress parseAddress(String message, InetAddress serverAddress, boolean extended) {
+        Matcher matcher;
+
+        if (extended) {
+            matcher = EXTENDED_PASSIVE_REPLY.matcher(message);
+            if (!matcher.find()) {
+                return null;
+            }
+
+            int port = parseNumber(matcher.group(2), 65535);
+            if (port < 0) {
+                return null;
+            }
+
+            return new InetSocketAddress(serverAddress, port);
+        }
+
+        matcher = PASSIVE_REPLY.matcher(message);
+        if (!matcher.find()) {
+            return null;
+        }
+
+        for (int group = 1; group <= 6; ++group) {
+            if (parseNumber(matcher.group(group), 255) < 0) {
+                return null;
+            }
+        }
+
+        int port = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+        String host = String.format(
+                "%s.%s.%s.%s",
+                matcher.group(1), matcher.group(2), matcher.group(3), matcher.group(4)
+        );
+
+        // Servers behind NAT often announce an unroutable address; the control connection's one works instead
+        if (host.equals("0.0.0.0")) {
+            return new InetSocketAddress(serverAddress, port);
+        }
+
+        return new InetSocketAddress(host, port);
+    }
+
+    // The number, or -1 if it is above max (or too long to be read at all)
+    private static int parseNumber(String digits, int max) {
+        if (digits.length() > 5) {
+            return -1;
+        }
+
+        int number = Integer.parseInt(digits);
+
+        return (number <= max) ? number : -1;
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.time.Instant;
+
+
+// One file or directory of a server listing
+public class RemoteEntry {
+    public enum Type {
+        FILE,
+        DIRECTORY,
+        LINK,
+
+        // The listing line gave nothing but the name
+        UNKNOWN
+    }
+
+
+    private String name;
+    private Type type;
+    private long size;
+    private Instant modifiedTime;
+    private String line;
+
+
+    // size is -1 and modifiedTime null when the listing does not tell
+    public RemoteEntry(String name, Type type, long size, Instant modifiedTime, String line) {
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+        this.line = line;
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isDirectory() {
+        return type == Type.DIRECTORY;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public Instant getModifiedTime() {
+        return modifiedTime;
+    }
+
+    // The listing line exactly as sent by the server
+    public String getLine() {
+        return line;
+    }
+
+
+    @Override
+    public String toString() {
+        return line;
+    }
+
+}
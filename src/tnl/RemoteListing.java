@@ -0,0 +1,252 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+// Directory listing read from the data connection one line at a time, so that entries can be used
+// as they arrive and a huge directory never has to fit in memory.
+// Once the last entry has been read, the reply closing the LIST is read from the control connection.
+// The listing must be closed before the session is used again, even if it has not been read to the end.
+public class RemoteListing implements Iterator<RemoteEntry>, AutoCloseable {
+    // Longer listings are not kept in the ListingCache, so that memory stays bounded
+    private static final int MAX_CACHED_LINES = 10000;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+
+    private FTPClient session;
+    private Socket dataSocket;
+    private BufferedReader dataInStream;
+
+    private Iterator<String> storedLines;
+
+    private boolean machineReadable;
+
+    private ListingCache listingCache;
+    private String serverPath;
+    private List<String> linesToCache;
+
+    // Given every line read, entries or not; null unless asked for
+    private Consumer<String> lineConsumer;
+
+    private RemoteEntry nextEntry;
+    private boolean finished;
+    private boolean readFailed;
+
+    private CommandResult result;
+    private AutoTerminatedException terminatedException;
+
+
+    // Listing being sent by the server on dataSocket, in answer to a LIST (or MLSD) of serverPath
+    RemoteListing(FTPClient session, Socket dataSocket, boolean machineReadable,
+                  ListingCache listingCache, String serverPath) throws IOException {
+        this.session = session;
+        this.machineReadable = machineReadable;
+        this.dataSocket = dataSocket;
+        this.dataInStream = new BufferedReader(
+                new InputStreamReader(dataSocket.getInputStream(), StandardCharsets.UTF_8), READ_BUFFER_SIZE
+        );
+
+        this.listingCache = listingCache;
+        this.serverPath = serverPath;
+        this.linesToCache = (listingCache != null) ? new ArrayList<String>() : null;
+
+        this.finished = false;
+        this.readFailed = false;
+    }
+
+
+    // Listing that is already complete: taken from the cache, or failed before any data came
+    RemoteListing(CommandResult result, List<String> lines, boolean machineReadable) {
+        this.storedLines = lines.iterator();
+        this.result = result;
+        this.machineReadable = machineReadable;
+
+        this.finished = false;
+        this.readFailed = false;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        while (nextEntry == null && !finished) {
+            String line = readLine();
+
+            if (line == null) {
+                finish();
+                break;
+            }
+
+            nextEntry = machineReadable ? ListingParser.parseMachineLine(line) : ListingParser.parse(line);
+        }
+
+        return nextEntry != null;
+    }
+
+
+    @Override
+    public RemoteEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        RemoteEntry entry = nextEntry;
+        nextEntry = null;
+
+        return entry;
+    }
+
+
+    // The stream reads from this listing: close the listing, not only the stream
+    public Stream<RemoteEntry> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false
+        );
+    }
+
+
+    // Every line read from now on is also given to lineConsumer, including those that are not entries ("total 42")
+    void setLineConsumer(Consumer<String> lineConsumer) {
+        this.lineConsumer = lineConsumer;
+    }
+
+
+    // MLSD facts rather than LIST lines
+    public boolean isMachineReadable() {
+        return machineReadable;
+    }
+
+
+    // Outcome of the LIST; null until the listing has been read to the end or closed
+    public CommandResult getResult() {
+        return finished ? result : null;
+    }
+
+
+    // Entries not read yet are received and dropped, so that the next reply on the control
+    // connection is the one closing the LIST
+    // Exception: the session has been terminated
+    @Override
+    public void close() throws AutoTerminatedException {
+        if (!finished) {
+            linesToCache = null;
+
+            while (readLine() != null) {
+                // Drop the line
+            }
+
+            finish();
+        }
+
+        if (terminatedException != null) {
+            AutoTerminatedException e = terminatedException;
+            terminatedException = null;
+
+            throw e;
+        }
+
+    }
+
+
+    private String readLine() {
+        String line = readNextLine();
+
+        if (line != null && lineConsumer != null) {
+            lineConsumer.accept(line);
+        }
+
+        return line;
+    }
+
+    private String readNextLine() {
+        if (storedLines != null) {
+            return storedLines.hasNext() ? storedLines.next() : null;
+        }
+
+        String line;
+
+        try {
+            line = dataInStream.readLine();
+        } catch (IOException e) {
+            readFailed = true;
+            return null;
+        }
+
+        if (line != null && linesToCache != null) {
+            if (linesToCache.size() < MAX_CACHED_LINES) {
+                linesToCache.add(line);
+            } else {
+                linesToCache = null;
+            }
+        }
+
+        return line;
+    }
+
+
+    private void finish() {
+        finished = true;
+
+        if (session == null) {
+            return;
+        }
+
+        try {
+            dataSocket.close();
+        } catch (Exception e) {
+            // Silently ignore this error
+        }
+
+        try {
+            FTPResponse ftpResponse = session.getResponse();
+
+            if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED && !readFailed) {
+                result = new CommandResult(true, ftpResponse.message);
+
+                if (linesToCache != null) {
+                    listingCache.put(serverPath, new ListResult(
+                            true, ftpResponse.message, String.join("\n", linesToCache), machineReadable
+                    ));
+                }
+
+            } else if (ftpResponse.code == FTPResponseCode.DATA_TRANSFER_COMPLETED
+                    || ftpResponse.code == FTPResponseCode.DATA_TRANSFER_ERROR) {
+                result = new CommandResult(false, "Error retrieving list of files and directories from server!");
+
+            } else if (ftpResponse.code == FTPResponseCode.FORCED_LOGGED_OUT) {
+                session.terminate();
+                throw new AutoTerminatedException("Server automatically logged out");
+
+            } else {
+                session.terminate();
+                throw new AutoTerminatedException("Invalid response from server");
+            }
+
+        } catch (AutoTerminatedException e) {
+            terminatedException = e;
+            result = new CommandResult(false, e.getMessage() + "!");
+        }
+
+        linesToCache = null;
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+// How often, and how soon, an operation that failed for a passing reason is run again.
+// The delay before each retry doubles up to maxDelayMillis, and is drawn at random below that bound,
+// so that clients dropped together by a restarting server do not all come back at the same moment.
+public class RetryPolicy {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(4, 100, 5000);
+
+
+    private int maxAttempts;
+    private long initialDelayMillis;
+    private long maxDelayMillis;
+
+
+    // maxAttempts counts the first attempt: 1 never retries
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+
+        if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry delays");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelayMillis() {
+        return initialDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+
+    // Delay before the given retry (1 for the second attempt)
+    public long delayMillis(int retry) {
+        // Shifting further would only overflow: the bound has long been capped by then
+        long bound = initialDelayMillis << Math.min(retry - 1, 30);
+
+        if (bound <= 0 || bound > maxDelayMillis) {
+            bound = maxDelayMillis;
+        }
+
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("%d attempts, %d - %d ms apart", maxAttempts, initialDelayMillis, maxDelayMillis);
+    }
+
+}
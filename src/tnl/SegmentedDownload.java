@@ -0,0 +1,196 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+// Downloads one large file over several sessions at once.
+// The file is split by SIZE into ranges; each session fetches its range with REST + RETR and writes it
+// at its position in a preallocated part file, which replaces the target only once every range is in.
+public class SegmentedDownload {
+    private static final String PART_FILE_SUFFIX = ".part";
+
+
+    private FTPClient template;
+
+
+    public SegmentedDownload(FTPClient template) {
+        this.template = template;
+    }
+
+
+    public TransferResult retrieve(String fileNameOnServer, String fileNameOnLocal, int segments)
+            throws AutoTerminatedException, InterruptedException {
+        if (segments < 1) {
+            throw new IllegalArgumentException("At least one segment is needed");
+        }
+
+        long startTime = System.nanoTime();
+
+        long fileSize = template.getRemoteFileSize(fileNameOnServer);
+
+        // Without SIZE the file cannot be split: fall back to a plain download
+        if (fileSize < 0 || segments == 1) {
+            return template.retrieve(fileNameOnServer, fileNameOnLocal, OverwritePolicy.OVERWRITE);
+        }
+
+        // Small files are not worth more than one range per byte
+        segments = (int) Math.max(1, Math.min(segments, fileSize));
+
+        Path target = template.getClientDirectory().resolve(fileNameOnLocal);
+        Path partFile = target.resolveSibling(target.getFileName() + PART_FILE_SUFFIX);
+
+        RandomAccessFile partRandomAccessFile;
+        try {
+            partRandomAccessFile = new RandomAccessFile(partFile.toFile(), "rw");
+            partRandomAccessFile.setLength(fileSize);
+        } catch (Exception e) {
+            return new TransferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Error creating file in your computer!", 0, System.nanoTime() - startTime
+            );
+        }
+
+        FileChannel partChannel = partRandomAccessFile.getChannel();
+        FTPSessionPool sessionPool = new FTPSessionPool(template, segments);
+        ExecutorService executor = Executors.newFixedThreadPool(segments);
+
+        List<TransferResult> results = new ArrayList<TransferResult>();
+
+        try {
+            List<Future<TransferResult>> futures = new ArrayList<Future<TransferResult>>();
+            long segmentSize = (fileSize + segments - 1) / segments;
+
+            for (long offset = 0; offset < fileSize; offset += segmentSize) {
+                long start = offset;
+                long length = Math.min(segmentSize, fileSize - offset);
+
+                futures.add(executor.submit(
+                        () -> retrieveSegment(sessionPool, fileNameOnServer, partChannel, start, length, fileSize)
+                ));
+            }
+
+            for (Future<TransferResult> future: futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(new TransferResult(
+                            fileNameOnServer, TransferResult.Status.FAILED, String.valueOf(e.getCause()), 0, 0
+                    ));
+                }
+
+            }
+
+        } finally {
+            executor.shutdownNow();
+            sessionPool.close();
+        }
+
+        long bytesTransferred = 0;
+        String failure = null;
+
+        for (TransferResult result: results) {
+            bytesTransferred += result.getBytesTransferred();
+
+            if (!result.isSuccessful() && failure == null) {
+                failure = result.getMessage();
+            }
+
+        }
+
+        // Verify that every byte of the file has been received exactly once
+        if (failure == null && bytesTransferred != fileSize) {
+            failure = "Downloaded size does not match the size on server!";
+        }
+
+        try {
+            if (failure == null) {
+                partChannel.force(true);
+            }
+
+            partRandomAccessFile.close();
+        } catch (Exception e) {
+            if (failure == null) {
+                failure = "Error saving downloaded file to computer!";
+            }
+        }
+
+        if (failure == null) {
+            try {
+                moveIntoPlace(partFile, target);
+            } catch (Exception e) {
+                failure = "Error saving downloaded file to computer!";
+            }
+        }
+
+        if (failure != null) {
+            partFile.toFile().delete();
+
+            return new TransferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    failure, bytesTransferred, System.nanoTime() - startTime
+            );
+        }
+
+        return new TransferResult(
+                fileNameOnServer, TransferResult.Status.SUCCEEDED,
+                String.format("File '%s' has been downloaded successfully in %d segments", fileNameOnServer, segments),
+                bytesTransferred, System.nanoTime() - startTime
+        );
+    }
+
+
+    private static TransferResult retrieveSegment(FTPSessionPool sessionPool, String fileNameOnServer,
+                                                  FileChannel partChannel, long offset, long length, long fileSize) {
+        long startTime = System.nanoTime();
+        FTPClient session;
+
+        try {
+            session = sessionPool.borrow();
+        } catch (Exception e) {
+            return new TransferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    "Cannot open session: " + e.getMessage(), 0, System.nanoTime() - startTime
+            );
+        }
+
+        try {
+            return session.retrieveRange(fileNameOnServer, partChannel, offset, length, offset + length == fileSize);
+        } catch (AutoTerminatedException e) {
+            return new TransferResult(
+                    fileNameOnServer, TransferResult.Status.FAILED,
+                    e.getMessage() + "!", 0, System.nanoTime() - startTime
+            );
+        } finally {
+            sessionPool.giveBack(session);
+        }
+
+    }
+
+
+    private static void moveIntoPlace(Path partFile, Path target) throws Exception {
+        try {
+            Files.move(partFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+    }
+
+}
@@ -0,0 +1,438 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+// Minimal FTP server speaking the dialect of this client, serving a local root directory.
+// Meant for benchmarks on a single machine, without a real server: one thread per control connection,
+// every user name and password is accepted, and paths cannot leave the root directory.
+// Verbs: USER PASS PORT PASV EPSV LIST RETR STOU STORE APPE REST SIZE DELE MKD CWD QUIT
+public class StandInServer implements AutoCloseable {
+    private static final int DATA_CONNECT_TIMEOUT = 10000;
+
+    private static final DateTimeFormatter LIST_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.US).withZone(ZoneOffset.UTC);
+
+
+    private Path rootDirectory;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private List<Socket> controlSockets;
+
+
+    // port 0 picks a free port
+    public StandInServer(Path rootDirectory, int port) throws IOException {
+        this.rootDirectory = rootDirectory.toAbsolutePath().normalize();
+        this.serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.controlSockets = Collections.synchronizedList(new ArrayList<Socket>());
+    }
+
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+
+    public void start() {
+        acceptThread = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                Socket controlSocket;
+
+                try {
+                    controlSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    break;
+                }
+
+                try {
+                    // Replies are small writes that must not wait for the client's delayed ACK
+                    controlSocket.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+
+                controlSockets.add(controlSocket);
+
+                Thread sessionThread = new Thread(() -> serve(controlSocket), "stand-in-server-session");
+                sessionThread.setDaemon(true);
+                sessionThread.start();
+            }
+        }, "stand-in-server");
+
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Silently ignore the exception
+        }
+
+        synchronized (controlSockets) {
+            for (Socket controlSocket: controlSockets) {
+                try {
+                    controlSocket.close();
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+            }
+        }
+
+    }
+
+
+    // State of one control connection
+    private class Session {
+        private Socket controlSocket;
+        private OutputStream outStream;
+
+        // Relative to the root, '/' separated, "" for the root itself
+        private String currentPath;
+
+        private InetSocketAddress activeAddress;
+        private ServerSocketChannel passiveChannel;
+        private long restartOffset;
+
+        public Session(Socket controlSocket) throws IOException {
+            this.controlSocket = controlSocket;
+            this.outStream = controlSocket.getOutputStream();
+            this.currentPath = "";
+            this.restartOffset = 0;
+        }
+
+        public void reply(int code, String message) throws IOException {
+            outStream.write(String.format("%d %s\r\n", code, message).getBytes(StandardCharsets.UTF_8));
+            outStream.flush();
+        }
+
+        // Returns FALSE once the session is over
+        public boolean handle(String verb, String argument) throws IOException {
+            Path path = resolve(argument);
+
+            switch (verb) {
+                case "USER":
+                    reply(331, "Password required");
+                    break;
+
+                case "PASS":
+                    reply(230, "Logged in");
+                    break;
+
+                case "PORT":
+                    openActive(argument);
+                    break;
+
+                case "PASV":
+                case "EPSV":
+                    openPassive(verb.equals("EPSV"));
+                    break;
+
+                case "REST":
+                    try {
+                        restartOffset = Long.parseLong(argument);
+                        reply(350, "Restarting at " + restartOffset);
+                    } catch (NumberFormatException e) {
+                        reply(501, "Invalid offset");
+                    }
+                    break;
+
+                case "SIZE":
+                    if (path != null && Files.isRegularFile(path)) {
+                        reply(213, String.valueOf(Files.size(path)));
+                    } else {
+                        reply(550, "No such file");
+                    }
+                    break;
+
+                case "LIST":
+                    sendListing(path != null && !argument.isEmpty() ? path : resolve(""));
+                    break;
+
+                case "RETR":
+                    sendFile(path);
+                    break;
+
+                case "STOU":
+                case "STORE":
+                case "APPE":
+                    receiveFile(path, verb);
+                    break;
+
+                case "DELE":
+                    try {
+                        Files.delete(path);
+                        reply(250, "Deleted");
+                    } catch (Exception e) {
+                        reply(451, "Cannot delete " + argument);
+                    }
+                    break;
+
+                case "MKD":
+                    try {
+                        Files.createDirectory(path);
+                        reply(250, "Created");
+                    } catch (Exception e) {
+                        reply(451, "Cannot create " + argument);
+                    }
+                    break;
+
+                case "CWD":
+                    Path directory = argument.isEmpty() ? rootDirectory : path;
+
+                    if (directory != null && Files.isDirectory(directory)) {
+                        currentPath = rootDirectory.relativize(directory).toString().replace('\\', '/');
+                        reply(250, currentPath);
+                    } else {
+                        reply(451, "Directory does not exist");
+                    }
+                    break;
+
+                case "NOOP":
+                    reply(200, "OK");
+                    break;
+
+                case "QUIT":
+                    reply(221, "Bye");
+                    return false;
+
+                default:
+                    reply(502, "Command not implemented");
+            }
+
+            return true;
+        }
+
+        // null if the path leads out of the root directory
+        private Path resolve(String argument) {
+            Path path = rootDirectory.resolve(currentPath).resolve(argument).normalize();
+
+            return path.startsWith(rootDirectory) ? path : null;
+        }
+
+        private void openActive(String argument) throws IOException {
+            String[] fields = argument.split(" ");
+
+            try {
+                activeAddress = new InetSocketAddress(fields[0], Integer.parseInt(fields[1]));
+                closePassive();
+                reply(200, "Port command successful");
+            } catch (Exception e) {
+                reply(501, "Invalid address");
+            }
+        }
+
+        private void openPassive(boolean extended) throws IOException {
+            closePassive();
+
+            passiveChannel = ServerSocketChannel.open();
+            passiveChannel.bind(new InetSocketAddress(controlSocket.getLocalAddress(), 0), 1);
+            activeAddress = null;
+
+            int port = ((InetSocketAddress) passiveChannel.getLocalAddress()).getPort();
+
+            if (extended) {
+                reply(229, String.format("Entering Extended Passive Mode (|||%d|)", port));
+            } else {
+                byte[] address = controlSocket.getLocalAddress().getAddress();
+
+                reply(227, String.format(
+                        "Entering Passive Mode (%d,%d,%d,%d,%d,%d)",
+                        address[0] & 0xFF, address[1] & 0xFF, address[2] & 0xFF, address[3] & 0xFF,
+                        port / 256, port % 256
+                ));
+            }
+        }
+
+        private void closePassive() {
+            if (passiveChannel != null) {
+                try {
+                    passiveChannel.close();
+                } catch (IOException e) {
+                    // Silently ignore the exception
+                }
+
+                passiveChannel = null;
+            }
+        }
+
+        // Connects to the PORT address, or takes the connection made to the PASV/EPSV port
+        private SocketChannel openDataConnection() throws IOException {
+            if (passiveChannel != null) {
+                try {
+                    return passiveChannel.accept();
+                } finally {
+                    closePassive();
+                }
+            }
+
+            if (activeAddress == null) {
+                throw new IOException("No data connection");
+            }
+
+            SocketChannel dataChannel = SocketChannel.open();
+            dataChannel.socket().connect(activeAddress, DATA_CONNECT_TIMEOUT);
+
+            return dataChannel;
+        }
+
+        private void sendListing(Path directory) throws IOException {
+            if (directory == null || !Files.isDirectory(directory)) {
+                reply(451, "Directory does not exist");
+                return;
+            }
+
+            StringBuilder listing = new StringBuilder();
+
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry: entries) {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+
+                    listing.append(String.format(
+                            "%s 1 ftp ftp %d %s %s\r\n",
+                            attributes.isDirectory() ? "drwxr-xr-x" : "-rw-r--r--",
+                            attributes.size(),
+                            LIST_TIME_FORMAT.format(attributes.lastModifiedTime().toInstant()),
+                            entry.getFileName()
+                    ));
+                }
+            }
+
+            reply(150, "Opening data connection");
+
+            try (SocketChannel dataChannel = openDataConnection()) {
+                dataChannel.socket().getOutputStream().write(listing.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                reply(426, "Data connection error");
+                return;
+            }
+
+            reply(226, "Transfer complete");
+        }
+
+        private void sendFile(Path path) throws IOException {
+            long offset = restartOffset;
+            restartOffset = 0;
+
+            if (path == null || !Files.isRegularFile(path)) {
+                closePassive();
+                reply(450, "No such file");
+                return;
+            }
+
+            reply(150, "Opening data connection");
+
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+                 SocketChannel dataChannel = openDataConnection()) {
+                long size = fileChannel.size();
+
+                while (offset < size) {
+                    offset += fileChannel.transferTo(offset, size - offset, dataChannel);
+                }
+
+            } catch (IOException e) {
+                reply(426, "Data connection error");
+                return;
+            }
+
+            reply(226, "Transfer complete");
+        }
+
+        private void receiveFile(Path path, String verb) throws IOException {
+            restartOffset = 0;
+
+            if (path == null || (verb.equals("STOU") && Files.exists(path))) {
+                closePassive();
+                reply(450, "File already exists");
+                return;
+            }
+
+            reply(150, "Opening data connection");
+
+            StandardOpenOption mode = verb.equals("APPE") ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+                 SocketChannel dataChannel = openDataConnection()) {
+                long position = fileChannel.size();
+                long received;
+
+                while ((received = fileChannel.transferFrom(dataChannel, position, 8L * 1024 * 1024)) > 0) {
+                    position += received;
+                }
+
+            } catch (IOException e) {
+                reply(426, "Data connection error");
+                return;
+            }
+
+            reply(226, "Transfer complete");
+        }
+
+    }
+
+
+    private void serve(Socket controlSocket) {
+        try (Socket socket = controlSocket) {
+            Session session = new Session(socket);
+            BufferedReader inStream = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)
+            );
+
+            String line;
+
+            while ((line = inStream.readLine()) != null) {
+                int index = line.indexOf(' ');
+
+                String verb = (index == -1 ? line : line.substring(0, index)).toUpperCase();
+                String argument = (index == -1) ? "" : line.substring(index + 1).trim();
+
+                // Arguments with spaces come quoted
+                if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+                    argument = argument.substring(1, argument.length() - 1);
+                }
+
+                if (!session.handle(verb, argument)) {
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            // The client went away
+        } finally {
+            controlSockets.remove(controlSocket);
+        }
+
+    }
+
+}
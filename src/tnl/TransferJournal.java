@@ -0,0 +1,116 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+
+// Checkpoints of unfinished transfers, kept in the client directory so that a rerun
+// (even from a new JVM) can continue a transfer from its last durable offset.
+// Every change is written to a temporary file first and then moved over the journal.
+class TransferJournal {
+    private static final String JOURNAL_FILE_NAME = ".ftpclient-journal";
+
+
+    private Path journalFile;
+    private Properties offsets;
+
+
+    public TransferJournal(Path clientDirectory) {
+        journalFile = clientDirectory.resolve(JOURNAL_FILE_NAME);
+        offsets = new Properties();
+
+        if (journalFile.toFile().exists()) {
+            try (FileInputStream journalInStream = new FileInputStream(journalFile.toFile())) {
+                offsets.load(journalInStream);
+            } catch (IOException e) {
+                // An unreadable journal only means transfers restart from zero
+                offsets.clear();
+            }
+        }
+
+    }
+
+
+    // The journal and its temporary copy are not files of the user
+    public static boolean isJournalFile(Path file) {
+        String fileName = file.getFileName().toString();
+
+        return fileName.equals(JOURNAL_FILE_NAME) || fileName.equals(JOURNAL_FILE_NAME + ".tmp");
+    }
+
+
+    public static String downloadKey(String server, String fileNameOnServer, String fileNameOnLocal) {
+        return String.format("get %s %s > %s", server, fileNameOnServer, fileNameOnLocal);
+    }
+
+    public static String uploadKey(String server, String fileNameOnLocal, String fileNameOnServer) {
+        return String.format("put %s %s > %s", server, fileNameOnLocal, fileNameOnServer);
+    }
+
+
+    // -1 if the transfer has no checkpoint
+    public synchronized long getOffset(String key) {
+        String offset = offsets.getProperty(key);
+
+        if (offset == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(offset);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+
+    public synchronized void record(String key, long offset) throws IOException {
+        offsets.setProperty(key, String.valueOf(offset));
+        save();
+    }
+
+
+    public synchronized void remove(String key) {
+        if (offsets.remove(key) == null) {
+            return;
+        }
+
+        try {
+            save();
+        } catch (IOException e) {
+            // A stale checkpoint is harmless: it is checked against the file before being used
+        }
+
+    }
+
+
+    private void save() throws IOException {
+        Path temporaryFile = journalFile.resolveSibling(JOURNAL_FILE_NAME + ".tmp");
+
+        try (FileOutputStream journalOutStream = new FileOutputStream(temporaryFile.toFile())) {
+            offsets.store(journalOutStream, null);
+            journalOutStream.getFD().sync();
+        }
+
+        try {
+            Files.move(temporaryFile, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+Name: TA Ngoc Linh
+ID: 20213201
+Email: nlta@connect.ust.hk
+ */
+
+package tnl;
+
+
+
+// Outcome of a single file transfer
+public class TransferResult {
+    public enum Status {
+        SUCCEEDED,
+        SKIPPED,
+        FAILED
+    }
+
+
+    private String fileName;
+    private Status status;
+    private String message;
+    private long bytesTransferred;
+    private long elapsedNanos;
+
+    // Digest computed during the transfer, null if the transfer was not checked
+    private ChecksumAlgorithm checksumAlgorithm;
+    private String checksum;
+    private boolean checksumVerified;
+
+
+    public TransferResult(String fileName, Status status, String message, long bytesTransferred, long elapsedNanos) {
+        this.fileName = fileName;
+        this.status = status;
+        this.message = message;
+        this.bytesTransferred = bytesTransferred;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+
+    void setChecksum(ChecksumAlgorithm checksumAlgorithm, String checksum, boolean checksumVerified) {
+        this.checksumAlgorithm = checksumAlgorithm;
+        this.checksum = checksum;
+        this.checksumVerified = checksumVerified;
+    }
+
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccessful() {
+        return status == Status.SUCCEEDED;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getElapsedMillis() {
+        return elapsedNanos / 1000000.0;
+    }
+
+    public ChecksumAlgorithm getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    // Hex digest of the data transferred, null if the transfer was not checked
+    public String getChecksum() {
+        return checksum;
+    }
+
+    // The server computed the same digest
+    public boolean isChecksumVerified() {
+        return checksumVerified;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%-9s %s (%d bytes, %.1f ms) %s",
+                status, fileName, bytesTransferred, getElapsedMillis(), message
+        );
+    }
+
+}